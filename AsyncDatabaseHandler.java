@@ -0,0 +1,244 @@
+package yuconz23d;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+/**
+ * An asynchronous front to the DatabaseHandler. Each method runs the
+ * matching DatabaseHandler call on a worker thread and returns a
+ * CompletableFuture straight away, so the GUI's event thread (or a batch
+ * job) is never blocked waiting on SQLite and independent calls can run
+ * at the same time.
+ *
+ * The number of calls running at once is bounded by the size of the
+ * connection pools, as anything beyond that would only queue for a
+ * connection. The bound (and the threads) are shared by every
+ * AsyncDatabaseHandler, as they all draw on the same pools. Every call is
+ * given a timeout, after which its future completes with a
+ * TimeoutException. Cancelling a future, or letting it time out,
+ * interrupts the call if it is still waiting to run.
+ */
+public class AsyncDatabaseHandler {
+	private static final long DEFAULT_TIMEOUT = 10000;
+
+	// One call per connection, readers plus the single writer of each database
+	private static final int MAX_IN_FLIGHT = DatabaseHandler.getAuthPool().getMaxReadConnections()
+			+ DatabaseHandler.getHRPool().getMaxReadConnections() + 2;
+	private static final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT, true);
+	private static final ExecutorService executor = WorkerExecutors.newBlockingExecutor("yuconz-db", MAX_IN_FLIGHT);
+
+	private DatabaseHandler db;
+	private long timeoutMillis;
+	private volatile boolean shutdown;
+
+	/**
+	 * Constructs the async handler around the given DatabaseHandler with the default timeout
+	 * @param db The DatabaseHandler whose calls should be run asynchronously
+	 */
+	public AsyncDatabaseHandler(DatabaseHandler db) {
+		this(db, DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * Constructs the async handler around the given DatabaseHandler
+	 * @param db The DatabaseHandler whose calls should be run asynchronously
+	 * @param timeoutMillis How long a call may take before its future fails with a TimeoutException
+	 */
+	public AsyncDatabaseHandler(DatabaseHandler db, long timeoutMillis) {
+		this.db = db;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Asynchronously retrieves a record or multiple by employeeId and RecordType
+	 * @see DatabaseHandler#retrieveRecord(String, RecordType)
+	 * @param employeeId The employeeId whose records to search for
+	 * @param recordType The type of record(s) to be found
+	 * @return Future of a Record, List<Record> or null as retrieveRecord() would return
+	 */
+	public CompletableFuture<Object> retrieveRecord(String employeeId, RecordType recordType) {
+		return submit(() -> db.retrieveRecord(employeeId, recordType));
+	}
+
+	/**
+	 * Asynchronously creates a new record
+	 * @see DatabaseHandler#createRecord(Record)
+	 * @param newRecord Record object to be inserted as a new record
+	 * @return Future of createRecord()'s result
+	 */
+	public CompletableFuture<Boolean> createRecord(Record newRecord) {
+		return submit(() -> db.createRecord(newRecord));
+	}
+
+	/**
+	 * Asynchronously updates an existing record
+	 * @see DatabaseHandler#updateRecord(Record)
+	 * @param newRecord The record holding its new values
+	 * @return Future of updateRecord()'s result
+	 */
+	public CompletableFuture<Boolean> updateRecord(Record newRecord) {
+		return submit(() -> db.updateRecord(newRecord));
+	}
+
+	/**
+	 * Asynchronously checks if a permission exists for the given role level
+	 * @see DatabaseHandler#checkPermissionByRole(Role, String)
+	 * @param authRole The role level that should be searched
+	 * @param permission The permission to check for
+	 * @return Future which is true if the permission is found, false otherwise
+	 */
+	public CompletableFuture<Boolean> checkPermissionByRole(Role authRole, String permission) {
+		return submit(() -> db.checkPermissionByRole(authRole, permission));
+	}
+
+	/**
+	 * Asynchronously checks if a permission exists for a given department
+	 * @see DatabaseHandler#checkPermissionByDepartment(int, String)
+	 * @param departmentId The department that needs to be checked for the permission
+	 * @param permission The permission that is being checked for
+	 * @return Future which is true if the permission is found, false otherwise
+	 */
+	public CompletableFuture<Boolean> checkPermissionByDepartment(int departmentId, String permission) {
+		return submit(() -> db.checkPermissionByDepartment(departmentId, permission));
+	}
+
+	/**
+	 * Asynchronously checks if a permission exists for a given user
+	 * @see DatabaseHandler#checkPermissionByUser(String, String)
+	 * @param userId The user which should be checked for the permission
+	 * @param permission The permission which should be looked for
+	 * @return Future which is true if the permission is found, false otherwise
+	 */
+	public CompletableFuture<Boolean> checkPermissionByUser(String userId, String permission) {
+		return submit(() -> db.checkPermissionByUser(userId, permission));
+	}
+
+	/**
+	 * Asynchronously retrieves the department ID of an employee
+	 * @see DatabaseHandler#getDepartmentId(String)
+	 * @param employeeId The employee to find the department of
+	 * @return Future of the employee's department ID, 0 if not found
+	 */
+	public CompletableFuture<Integer> getDepartmentId(String employeeId) {
+		return submit(() -> db.getDepartmentId(employeeId));
+	}
+
+	/**
+	 * Asynchronously retrieves a user's password for a login attempt
+	 * @see DatabaseHandler#getPassword(String)
+	 * @param userID The user logging in
+	 * @return Future of the user's password, null when the user isn't found
+	 */
+	public CompletableFuture<String> getPassword(String userID) {
+		return submit(() -> db.getPassword(userID));
+	}
+
+	/**
+	 * Asynchronously finds the highest role a user can log in as
+	 * @see DatabaseHandler#getHighestRoleByLogin(String)
+	 * @param userID The user logging in
+	 * @return Future of the user's highest role level, failing with IllegalArgumentException for unknown users
+	 */
+	public CompletableFuture<Integer> getHighestRoleByLogin(String userID) {
+		return submit(() -> db.getHighestRoleByLogin(userID));
+	}
+
+	/**
+	 * Asynchronously finds the employeeId belonging to a login
+	 * @see DatabaseHandler#getEmployeeIdByLogin(String)
+	 * @param userId The user's login
+	 * @return Future of the employeeId, null if not found
+	 */
+	public CompletableFuture<String> getEmployeeIdByLogin(String userId) {
+		return submit(() -> db.getEmployeeIdByLogin(userId));
+	}
+
+	/**
+	 * Asynchronously logs a user in, checking their password and adding their session
+	 * @see DatabaseHandler#login(String, int, java.util.function.Predicate)
+	 * @param userID The user attempting to log in
+	 * @param authLevel The role level the user selected
+	 * @param passwordCheck Given the user's stored password, decides whether the attempt's password matches it
+	 * @return Future of the LoginResult
+	 */
+	public CompletableFuture<LoginResult> login(String userID, int authLevel, Predicate<String> passwordCheck) {
+		return submit(() -> db.login(userID, authLevel, passwordCheck));
+	}
+
+	/**
+	 * Asynchronously registers a new session for a user who has logged in
+	 * @see DatabaseHandler#addSession(String, int)
+	 * @param userId The userID that this session belongs to
+	 * @param authLevel The role level the user logged in with
+	 * @return Future which completes once the session has been added
+	 */
+	public CompletableFuture<Void> addSession(String userId, int authLevel) {
+		return submit(() -> {
+			db.addSession(userId, authLevel);
+			return null;
+		});
+	}
+
+	/**
+	 * Stops this handler accepting new calls, calls which have already been
+	 * submitted still run. The shared threads carry on serving other handlers.
+	 */
+	public void shutdown() {
+		shutdown = true;
+	}
+
+	/**
+	 * Runs a DatabaseHandler call on the executor, limited by the number of
+	 * calls allowed in flight and by the timeout
+	 * @param call The call to make
+	 * @return Future completed with the call's result, or exceptionally with whatever it threw
+	 */
+	private <T> CompletableFuture<T> submit(Callable<T> call) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		if(shutdown) {
+			result.completeExceptionally(new RejectedExecutionException("AsyncDatabaseHandler has been shut down"));
+			return result;
+		}
+		Future<?> task;
+		try {
+			task = executor.submit(() -> {
+				if(result.isDone()) {
+					return; // Cancelled or timed out before it got to run
+				}
+				boolean acquired = false;
+				try {
+					inFlight.acquire();
+					acquired = true;
+					result.complete(call.call());
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					result.completeExceptionally(e);
+				} catch(Throwable e) {
+					result.completeExceptionally(e);
+				} finally {
+					if(acquired) {
+						inFlight.release();
+					}
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			result.completeExceptionally(e);
+			return result;
+		}
+
+		result.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+		result.whenComplete((value, error) -> {
+			if(result.isCancelled() || error instanceof TimeoutException) {
+				task.cancel(true);
+			}
+		});
+		return result;
+	}
+}
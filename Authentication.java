@@ -14,7 +14,10 @@ public class Authentication {
 	private String user;
 	private String staffNo;
 	private Role selectedRole;
+	private LoginResult lastLogin;
 	private DatabaseHandler db;
+	private PasswordHasher hasher;
+	private LoginRateLimiter limiter;
 	
 	/**
 	 * Initialises the class, user+staffNo set to null until a login occurs and
@@ -25,6 +28,8 @@ public class Authentication {
 		staffNo = null;
 		selectedRole = null;
 		db = new DatabaseHandler();
+		hasher = PasswordHasher.getShared();
+		limiter = LoginRateLimiter.getShared();
 	}
 	
 	/**
@@ -51,6 +56,15 @@ public class Authentication {
 		return this.selectedRole;
 	}
 	
+	/**
+	 * Retrieves the outcome of the most recent login attempt, including the
+	 * user's highest role and whether their account has system access
+	 * @return The LoginResult of the last attempt, null if none has been made
+	 */
+	public LoginResult getLastLogin() {
+		return lastLogin;
+	}
+	
 	/**
 	 * Checks whether there is a user currently authenticated
 	 * @return true when a user is authenticated, false otherwise
@@ -62,10 +76,16 @@ public class Authentication {
 	/**
 	 * Retrieves all available roles for a given userID
 	 * @param userID which user's available roles will be found and returned
-	 * @return String array of all available roles, null if the userID is not found or an SQL error occurred
+	 * @return String array of all available roles, null if the userID is not found, an SQL error occurred
+	 * 			or too many attempts have been made
 	 */
 	public String[] getAvailableRoles(String userID) {
 		if(userID.isEmpty()) { return null; }
+		// Takes a global token before the database is queried, the user's own token is taken by the login attempt
+		if(!limiter.tryAcquireLookup(userID)) {
+			System.err.println("Too many login attempts for " + userID);
+			return null;
+		}
 		Integer highestRole = null;
 		try {
 			highestRole = db.getHighestRoleByLogin(userID);
@@ -100,30 +120,31 @@ public class Authentication {
 	 * @param userID The userID to attempt to login as
 	 * @param password The password that the user submitted for this attempt
 	 * @param authLevel the authentication level that was selected
-	 * @return true when the login was a success, false when it failed
+	 * @return true when the login was a success, false when it failed or too many attempts have been made
 	 */
 	public boolean checkLogin(String userID, String password, int authLevel) {
 		if(password.isEmpty()) { return false; }
-		String correctPassword = null;
+		// Turned away before the database or the password hasher are troubled
+		if(!limiter.tryAcquire(userID)) {
+			lastLogin = LoginResult.failed(LoginResult.Status.RATE_LIMITED, userID);
+			return false;
+		}
 		try {
-			correctPassword = db.getPassword(userID);
+			// Plain text or cheaply hashed passwords are replaced with a fresh hash once they've been checked
+			lastLogin = db.login(userID, authLevel,
+					storedPassword -> hasher.verify(password, storedPassword),
+					storedPassword -> hasher.needsRehash(storedPassword) ? hasher.hash(password) : null);
+			if(lastLogin.isSuccess()) {
+				this.user = userID;
+				this.selectedRole = lastLogin.getRole();
+				this.staffNo = lastLogin.getStaffNo();
+				return true;
+			}
 		} catch (SQLException e) {
 			System.err.println("SQL connection error occurred: " + e.getMessage());
 			e.printStackTrace();
-		}
-		if(correctPassword != null) {
-			if(password.equals(correctPassword)) {
-				try {
-					db.addSession(userID, authLevel);
-					this.user = userID;
-					this.selectedRole = Role.valueOf(authLevel);
-					this.staffNo = db.getEmployeeIdByLogin(userID);
-					return true;
-				} catch (SQLException e) {
-					System.err.println("SQL connection error occurred: " + e.getMessage());
-					e.printStackTrace();
-				}
-			}
+		} catch (IllegalStateException e) {
+			System.err.println("Unable to check password: " + e.getMessage());
 		}
 		return false;
 	}
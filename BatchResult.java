@@ -0,0 +1,109 @@
+package yuconz23d;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of inserting many records at once. Rather than a single
+ * success flag this reports how many rows were written and, for every
+ * row that could not be written, which row it was and why it failed, so
+ * the caller can correct and resubmit just those rows.
+ */
+public class BatchResult {
+	private int submitted;
+	private int inserted;
+	private List<Failure> failures;
+
+	/**
+	 * Constructs an empty result for a batch of the given size
+	 * @param submitted The number of records that were submitted
+	 */
+	public BatchResult(int submitted) {
+		this.submitted = submitted;
+		this.inserted = 0;
+		this.failures = new ArrayList<>();
+	}
+
+	/**
+	 * Records that a number of rows were written successfully
+	 * @param count How many rows were written
+	 */
+	void addInserted(int count) {
+		inserted += count;
+	}
+
+	/**
+	 * Records that a single row couldn't be written
+	 * @param index The position of the record in the submitted collection
+	 * @param record The record that failed
+	 * @param reason Why it failed, usually the SQL error message
+	 */
+	void addFailure(int index, Record record, String reason) {
+		failures.add(new Failure(index, record, reason));
+	}
+
+	/**
+	 * @return The number of records that were submitted
+	 */
+	public int getSubmitted() {
+		return submitted;
+	}
+
+	/**
+	 * @return The number of records that were written to the database
+	 */
+	public int getInserted() {
+		return inserted;
+	}
+
+	/**
+	 * @return Every record that failed to be written, in the order they were found
+	 */
+	public List<Failure> getFailures() {
+		return Collections.unmodifiableList(failures);
+	}
+
+	/**
+	 * @return true when every submitted record was written, false otherwise
+	 */
+	public boolean isComplete() {
+		return failures.isEmpty() && inserted == submitted;
+	}
+
+	/**
+	 * A single record that could not be written as part of a batch
+	 */
+	public static class Failure {
+		private int index;
+		private Record record;
+		private String reason;
+
+		private Failure(int index, Record record, String reason) {
+			this.index = index;
+			this.record = record;
+			this.reason = reason;
+		}
+
+		/**
+		 * @return The position of the record in the submitted collection
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return The record that failed
+		 */
+		public Record getRecord() {
+			return record;
+		}
+
+		/**
+		 * @return Why the record failed to be written
+		 */
+		public String getReason() {
+			return reason;
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package yuconz23d;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Everything one logged in user may do, worked out once at login from
+ * the permission matrix for their userId, staffNo, role and department.
+ *
+ * Whether each RecordType and ActionType is allowed for the user's own
+ * records, for everyone's records or (for CREATE) at all is precomputed
+ * into flat arrays, so most checks are a single array lookup. Grants for
+ * specific employees are still checked against the role's, user's and
+ * department's Grants, as there's no fixed set of them to precompute.
+ * Temporary request-based grants are looked up at the time of each check,
+ * so they stop applying the moment they expire.
+ *
+ * A CapabilitySet is immutable. It remembers the version of the grants
+ * it was built from, PermissionHandler.refreshCapabilities() builds a
+ * new one when the grants have changed since.
+ */
+public final class CapabilitySet {
+	private static final int ACTIONS = ActionType.values().length;
+
+	private String userId;
+	private String staffNo;
+	private Role authRole;
+	private int departmentId;
+	private long version;
+
+	private boolean[] unscoped;
+	private boolean[] self;
+	private boolean[] all;
+	private PermissionMatrix.Grants[] sources;
+	private RequestGrantRegistry requestGrants;
+
+	/**
+	 * Works out a user's capabilities from a snapshot of the grants
+	 * @param grants The snapshot of the grants to build from
+	 * @param userId The user's login
+	 * @param staffNo The user's employeeId
+	 * @param authRole The role the user logged in as
+	 * @param departmentId The department the user belongs to
+	 * @param requestGrants The registry of the temporary grants
+	 */
+	CapabilitySet(PermissionMatrix.Snapshot grants, String userId, String staffNo, Role authRole, int departmentId,
+			RequestGrantRegistry requestGrants) {
+		this.userId = userId;
+		this.staffNo = staffNo;
+		this.authRole = authRole;
+		this.departmentId = departmentId;
+		this.version = grants.getVersion();
+		this.requestGrants = requestGrants;
+		this.sources = new PermissionMatrix.Grants[] {
+				grants.forRole(authRole),
+				grants.forUser(userId),
+				grants.forDepartment(departmentId)
+		};
+
+		int combinations = RecordType.values().length * ACTIONS;
+		unscoped = new boolean[combinations];
+		self = new boolean[combinations];
+		all = new boolean[combinations];
+		for(RecordType recordType : RecordType.values()) {
+			for(ActionType action : ActionType.values()) {
+				int index = index(recordType, action);
+				for(PermissionMatrix.Grants source : sources) {
+					if(action == ActionType.CREATE) {
+						unscoped[index] |= source.allows(recordType, action, false, null);
+					} else {
+						self[index] |= source.allows(recordType, action, true, null);
+						all[index] |= source.allows(recordType, action, false, null);
+					}
+				}
+			}
+		}
+	}
+
+	private static int index(RecordType recordType, ActionType action) {
+		return recordType.ordinal() * ACTIONS + action.ordinal();
+	}
+
+	/**
+	 * Checks whether the user may do an action to a record, giving the same
+	 * answer as PermissionHandler.hasPermission() would for the same grants
+	 * @param action ActionType - The action that is being attempted
+	 * @param targetRecord Record - The record that is being targeted by this action
+	 * @return True if the user has permission to do this, false otherwise
+	 */
+	public boolean allows(ActionType action, Record targetRecord) {
+		RecordType recordType = targetRecord.getRecordType();
+		int index = index(recordType, action);
+		String targetEmployeeId = null;
+		boolean isSelf = false;
+		switch(action) {
+		case CREATE:
+			if(unscoped[index]) {
+				return true;
+			}
+			break;
+		case VIEW:
+		case MODIFY:
+			if(all[index]) {
+				return true;
+			}
+			targetEmployeeId = (String) targetRecord.getValue("employeeId");
+			if(targetEmployeeId == null) {
+				break;
+			}
+			isSelf = targetEmployeeId.equals(staffNo);
+			if(self[index] && isSelf) {
+				return true;
+			}
+			for(PermissionMatrix.Grants source : sources) {
+				if(source.allowsEmployee(recordType, action, targetEmployeeId)) {
+					return true;
+				}
+			}
+			break;
+		default:
+			return false;
+		}
+		return requestGrants.forUser(userId).allows(recordType, action, isSelf, targetEmployeeId);
+	}
+
+	/**
+	 * Filters a list of records down to those the user may do an action to
+	 * @param action ActionType - The action that is being attempted
+	 * @param targetRecords List<Record> - The records that are being targeted by this action
+	 * @return List<Record> of the permitted records, in their original order
+	 */
+	public List<Record> filterPermitted(ActionType action, List<Record> targetRecords) {
+		ArrayList<Record> results = new ArrayList<>(targetRecords.size());
+		for(Record target : targetRecords) {
+			if(allows(action, target)) {
+				results.add(target);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Checks whether these capabilities were built for the given user
+	 * @param userId The user's login
+	 * @param staffNo The user's employeeId
+	 * @param authRole The role the user logged in as
+	 * @return true if the capabilities belong to exactly this user and role
+	 */
+	public boolean isFor(String userId, String staffNo, Role authRole) {
+		return this.authRole == authRole
+				&& Objects.equals(this.userId, userId)
+				&& Objects.equals(this.staffNo, staffNo);
+	}
+
+	/**
+	 * @return The user's login
+	 */
+	public String getUserId() {
+		return userId;
+	}
+
+	/**
+	 * @return The user's employeeId
+	 */
+	public String getStaffNo() {
+		return staffNo;
+	}
+
+	/**
+	 * @return The role the user logged in as
+	 */
+	public Role getRole() {
+		return authRole;
+	}
+
+	/**
+	 * @return The department the user belonged to when the capabilities were built
+	 */
+	public int getDepartmentId() {
+		return departmentId;
+	}
+
+	/**
+	 * @return The version of the grants these capabilities were built from
+	 */
+	public long getVersion() {
+		return version;
+	}
+}
@@ -22,6 +22,7 @@ public class Column {
 	private String errorTip;
 	private boolean hidden;
 	private boolean editable;
+	private boolean encrypted;
 	
 	/**
 	 * Constructs a representation of each column in a table
@@ -34,12 +35,29 @@ public class Column {
 	 * @param editable True if this column's value can be edited, false otherwise
 	 */
 	public Column(String name, String displayText, String regex, String errorTip, boolean hidden, boolean editable) {
+		this(name, displayText, regex, errorTip, hidden, editable, false);
+	}
+
+	/**
+	 * Constructs a representation of each column in a table
+	 * of the database, which may hold sensitive values that are
+	 * encrypted before they're stored
+	 * @param name The name of the column in the Database
+	 * @param displayText The text to be displayed within the GUI for this column
+	 * @param regex A String representing the Regular Expression which validates this column's value
+	 * @param hidden True if this column should be hidden from user entry, false otherwise
+	 * @param errorTip A message to display when this column is incorrectly filled out (e.g must be 6 numerical digits long)
+	 * @param editable True if this column's value can be edited, false otherwise
+	 * @param encrypted True if this column's value should be encrypted in the database, false otherwise
+	 */
+	public Column(String name, String displayText, String regex, String errorTip, boolean hidden, boolean editable, boolean encrypted) {
 		this.name = name;
 		this.displayText = displayText;
 		this.regex = regex;
 		this.errorTip = errorTip;
 		this.hidden = hidden;
 		this.editable = editable;
+		this.encrypted = encrypted;
 	}
 
 	/**
@@ -87,6 +105,13 @@ public class Column {
 		return editable;
 	}
 	
+	/**
+	 * @return true when this column's value is encrypted in the database, false otherwise
+	 */
+	public boolean isEncrypted() {
+		return encrypted;
+	}
+	
 	/**
 	 * @return an appropriate error message to display when the given value is invalid
 	 */
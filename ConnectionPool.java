@@ -0,0 +1,512 @@
+package yuconz23d;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of JDBC connections to a single SQLite database.
+ *
+ * SQLite allows many readers but only a single writer per database file,
+ * so the pool keeps a number of read connections alongside exactly one
+ * write connection. Connections handed out by the pool are wrappers around
+ * the real connection; calling close() on them returns the connection to
+ * the pool rather than closing the underlying SQLite file, so existing
+ * code which closes its connections when done keeps working unchanged.
+ *
+ * Idle connections are health checked before being leased again and
+ * waiting for a connection is bounded by a lease timeout, after which
+ * an SQLException is thrown instead of blocking forever. Each connection
+ * also keeps a StatementCache so frequently used queries stay prepared.
+ */
+public class ConnectionPool {
+	private static final int DEFAULT_READ_CONNECTIONS = 4;
+	private static final long DEFAULT_LEASE_TIMEOUT = 5000;
+	private static final long DEFAULT_VALIDATION_INTERVAL = 30000;
+	private static final long DEFAULT_LONG_LEASE = 2000;
+	private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+	private static final int STATEMENT_CACHE_SIZE = 32;
+
+	private String url;
+	private int maxReadConnections;
+	private long leaseTimeoutMillis;
+	private long validationIntervalMillis;
+	private long longLeaseMillis;
+	private List<String> initStatements;
+
+	private Semaphore readPermits;
+	private Semaphore writePermit;
+	private ConcurrentLinkedDeque<PoolEntry> idleReaders;
+	private PoolEntry writer; // Only ever touched whilst holding writePermit
+	private volatile boolean shutdown;
+
+	private AtomicLong leasesGranted = new AtomicLong();
+	private AtomicLong leaseWaits = new AtomicLong();
+	private AtomicLong leaseTimeouts = new AtomicLong();
+	private AtomicLong longLeases = new AtomicLong();
+	private AtomicLong connectionsCreated = new AtomicLong();
+	private AtomicLong connectionsDiscarded = new AtomicLong();
+	private AtomicLong failedHealthChecks = new AtomicLong();
+	private StatementCache.Stats statementCacheStats = new StatementCache.Stats();
+
+	/**
+	 * Constructs a pool for the given database with the default sizing
+	 * @param url The JDBC url of the database, e.g jdbc:sqlite:YuconzHR.db
+	 * @param initStatements SQL statements to run on every newly opened connection
+	 */
+	public ConnectionPool(String url, String... initStatements) {
+		this(url, DEFAULT_READ_CONNECTIONS, DEFAULT_LEASE_TIMEOUT, DEFAULT_VALIDATION_INTERVAL, initStatements);
+	}
+
+	/**
+	 * Constructs a pool for the given database
+	 * @param url The JDBC url of the database, e.g jdbc:sqlite:YuconzHR.db
+	 * @param maxReadConnections The maximum number of read connections that may be open at once
+	 * @param leaseTimeoutMillis How long a caller may wait for a free connection before failing
+	 * @param validationIntervalMillis How long a connection may sit idle before it is health checked again
+	 * @param initStatements SQL statements to run on every newly opened connection
+	 */
+	public ConnectionPool(String url, int maxReadConnections, long leaseTimeoutMillis,
+			long validationIntervalMillis, String... initStatements) {
+		if(maxReadConnections < 1) {
+			throw new IllegalArgumentException("A pool needs at least one read connection");
+		}
+		this.url = url;
+		this.maxReadConnections = maxReadConnections;
+		this.leaseTimeoutMillis = leaseTimeoutMillis;
+		this.validationIntervalMillis = validationIntervalMillis;
+		this.longLeaseMillis = DEFAULT_LONG_LEASE;
+		this.initStatements = Arrays.asList(initStatements);
+		this.readPermits = new Semaphore(maxReadConnections, true);
+		this.writePermit = new Semaphore(1, true);
+		this.idleReaders = new ConcurrentLinkedDeque<>();
+	}
+
+	/**
+	 * Leases one of the pool's read connections. The connection must be
+	 * closed once the caller is finished with it to return it to the pool.
+	 * @return A pooled Connection intended for SELECT queries
+	 * @throws SQLException When no connection became free within the lease timeout or one couldn't be opened
+	 */
+	public Connection leaseRead() throws SQLException {
+		acquire(readPermits, "read");
+		PoolEntry entry = null;
+		try {
+			entry = idleReaders.pollFirst(); // Most recently used first, it is the most likely to be warm
+			entry = prepare(entry);
+		} catch(SQLException | RuntimeException e) {
+			readPermits.release();
+			throw e;
+		}
+		return wrap(entry, false);
+	}
+
+	/**
+	 * Leases the pool's single write connection, waiting for any other
+	 * writer to finish first. The connection must be closed once the caller
+	 * is finished with it, any transaction left open is rolled back.
+	 * @return The pooled Connection used for INSERT/UPDATE/DELETE statements
+	 * @throws SQLException When the writer didn't become free within the lease timeout or couldn't be opened
+	 */
+	public Connection leaseWrite() throws SQLException {
+		acquire(writePermit, "write");
+		try {
+			writer = prepare(writer);
+		} catch(SQLException | RuntimeException e) {
+			writePermit.release();
+			throw e;
+		}
+		return wrap(writer, true);
+	}
+
+	/**
+	 * Closes every idle connection held by the pool. Connections which are
+	 * currently leased are closed when they are returned.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		PoolEntry entry;
+		while((entry = idleReaders.pollFirst()) != null) {
+			discard(entry);
+		}
+		if(writePermit.tryAcquire()) {
+			try {
+				if(writer != null) {
+					discard(writer);
+					writer = null;
+				}
+			} finally {
+				writePermit.release();
+			}
+		}
+	}
+
+	/**
+	 * Waits for a permit for the given kind of connection
+	 * @param permits The semaphore guarding that kind of connection
+	 * @param kind "read" or "write", used in the error message
+	 * @throws SQLException When the lease timeout elapses or the pool has been shut down
+	 */
+	private void acquire(Semaphore permits, String kind) throws SQLException {
+		if(shutdown) {
+			throw new SQLException("Connection pool for " + url + " has been shut down");
+		}
+		if(!permits.tryAcquire()) {
+			leaseWaits.incrementAndGet();
+			boolean acquired = false;
+			try {
+				acquired = permits.tryAcquire(leaseTimeoutMillis, TimeUnit.MILLISECONDS);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted whilst waiting for a " + kind + " connection to " + url, e);
+			}
+			if(!acquired) {
+				leaseTimeouts.incrementAndGet();
+				throw new SQLException("Timed out after " + leaseTimeoutMillis + "ms waiting for a "
+						+ kind + " connection to " + url);
+			}
+		}
+		leasesGranted.incrementAndGet();
+	}
+
+	/**
+	 * Makes sure the given entry is usable, health checking it when it has been
+	 * idle for too long and replacing it when it isn't usable
+	 * @param entry The idle entry to prepare, null when a new connection should be opened
+	 * @return A usable entry
+	 * @throws SQLException When a new connection couldn't be opened
+	 */
+	private PoolEntry prepare(PoolEntry entry) throws SQLException {
+		if(entry != null) {
+			long now = System.currentTimeMillis();
+			boolean healthy;
+			try {
+				healthy = !entry.connection.isClosed();
+				if(healthy && now - entry.lastValidated > validationIntervalMillis) {
+					healthy = entry.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+					entry.lastValidated = now;
+				}
+			} catch(SQLException e) {
+				healthy = false;
+			}
+			if(healthy) {
+				return entry;
+			}
+			failedHealthChecks.incrementAndGet();
+			discard(entry);
+		}
+		return open();
+	}
+
+	/**
+	 * Opens a brand new connection to the database and runs the init statements on it
+	 * @return The entry holding the new connection
+	 * @throws SQLException When the connection couldn't be opened
+	 */
+	private PoolEntry open() throws SQLException {
+		Connection conn = DriverManager.getConnection(url);
+		try {
+			if(!initStatements.isEmpty()) {
+				Statement init = conn.createStatement();
+				try {
+					for(String sql : initStatements) {
+						init.execute(sql);
+					}
+				} finally {
+					init.close();
+				}
+			}
+		} catch(SQLException e) {
+			conn.close();
+			throw e;
+		}
+		connectionsCreated.incrementAndGet();
+		return new PoolEntry(conn, new StatementCache(STATEMENT_CACHE_SIZE, statementCacheStats));
+	}
+
+	/**
+	 * Closes the real connection behind an entry, it is no longer part of the pool afterwards
+	 * @param entry The entry to throw away
+	 */
+	private void discard(PoolEntry entry) {
+		connectionsDiscarded.incrementAndGet();
+		entry.closeStatements();
+		entry.statementCache.closeAll();
+		try {
+			entry.connection.close();
+		} catch(SQLException e) {
+			System.err.println("Failed to close pooled connection to " + url + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns a leased entry to the pool, resetting any state the borrower left behind
+	 * @param entry The entry being returned
+	 * @param write True when the entry is the pool's writer
+	 * @param leasedAt When the entry was leased, used to track long running leases
+	 */
+	private void release(PoolEntry entry, boolean write, long leasedAt) {
+		if(System.currentTimeMillis() - leasedAt > longLeaseMillis) {
+			longLeases.incrementAndGet();
+		}
+		boolean reusable = !shutdown;
+		entry.closeStatements();
+		entry.statementCache.resetAll();
+		try {
+			if(!entry.connection.getAutoCommit()) {
+				// The borrower never finished their transaction, don't let it leak into the next lease
+				entry.connection.rollback();
+				entry.connection.setAutoCommit(true);
+			}
+		} catch(SQLException e) {
+			reusable = false;
+		}
+
+		if(write) {
+			if(!reusable) {
+				discard(entry);
+				writer = null;
+			}
+			writePermit.release();
+		} else {
+			if(reusable) {
+				idleReaders.offerFirst(entry);
+			} else {
+				discard(entry);
+			}
+			readPermits.release();
+		}
+	}
+
+	/**
+	 * Wraps an entry's connection so that closing it returns it to this pool
+	 * @param entry The entry that has been leased
+	 * @param write True when the entry is the pool's writer
+	 * @return The Connection to hand to the caller
+	 */
+	private Connection wrap(PoolEntry entry, boolean write) {
+		return (Connection) Proxy.newProxyInstance(
+				Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class },
+				new Lease(entry, write));
+	}
+
+	/**
+	 * @return The JDBC url this pool connects to
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * @return The maximum number of read connections this pool will open
+	 */
+	public int getMaxReadConnections() {
+		return maxReadConnections;
+	}
+
+	/**
+	 * @return The number of read connections currently leased out
+	 */
+	public int getActiveReadConnections() {
+		return maxReadConnections - readPermits.availablePermits();
+	}
+
+	/**
+	 * @return The number of read connections that are open and waiting to be leased
+	 */
+	public int getIdleReadConnections() {
+		return idleReaders.size();
+	}
+
+	/**
+	 * @return True when the write connection is currently leased out
+	 */
+	public boolean isWriterActive() {
+		return writePermit.availablePermits() == 0;
+	}
+
+	/**
+	 * @return The total number of leases granted by this pool
+	 */
+	public long getLeasesGranted() {
+		return leasesGranted.get();
+	}
+
+	/**
+	 * @return The number of leases that had to wait for another borrower to return a connection
+	 */
+	public long getLeaseWaits() {
+		return leaseWaits.get();
+	}
+
+	/**
+	 * @return The number of lease attempts that gave up after the lease timeout
+	 */
+	public long getLeaseTimeouts() {
+		return leaseTimeouts.get();
+	}
+
+	/**
+	 * @return The number of leases which were held for longer than expected
+	 */
+	public long getLongLeases() {
+		return longLeases.get();
+	}
+
+	/**
+	 * @return The number of real connections this pool has opened
+	 */
+	public long getConnectionsCreated() {
+		return connectionsCreated.get();
+	}
+
+	/**
+	 * @return The number of real connections this pool has closed
+	 */
+	public long getConnectionsDiscarded() {
+		return connectionsDiscarded.get();
+	}
+
+	/**
+	 * @return The number of idle connections which failed their health check
+	 */
+	public long getFailedHealthChecks() {
+		return failedHealthChecks.get();
+	}
+
+	/**
+	 * @return The hit, miss and eviction counters of every statement cache in this pool
+	 */
+	public StatementCache.Stats getStatementCacheStats() {
+		return statementCacheStats;
+	}
+
+	/**
+	 * Returns a one-line summary of the pool's metrics, useful for logging
+	 */
+	public String toString() {
+		return "ConnectionPool[" + url
+				+ " readers=" + getActiveReadConnections() + "/" + maxReadConnections
+				+ " idle=" + getIdleReadConnections()
+				+ " writerActive=" + isWriterActive()
+				+ " leases=" + getLeasesGranted()
+				+ " waits=" + getLeaseWaits()
+				+ " timeouts=" + getLeaseTimeouts()
+				+ " longLeases=" + getLongLeases()
+				+ " created=" + getConnectionsCreated()
+				+ " discarded=" + getConnectionsDiscarded()
+				+ " failedHealthChecks=" + getFailedHealthChecks()
+				+ " statementCache(" + statementCacheStats + ")]";
+	}
+
+	/**
+	 * A real connection owned by the pool, along with its statement cache and
+	 * the uncached statements that have been created on it during the current lease
+	 */
+	private static class PoolEntry {
+		private Connection connection;
+		private long lastValidated;
+		private StatementCache statementCache;
+		private List<Statement> openStatements;
+
+		private PoolEntry(Connection connection, StatementCache statementCache) {
+			this.connection = connection;
+			this.lastValidated = System.currentTimeMillis();
+			this.statementCache = statementCache;
+			this.openStatements = new ArrayList<>();
+		}
+
+		/**
+		 * Closes every uncached statement created during the lease, which also closes
+		 * their result sets and releases any SQLite read locks they hold
+		 */
+		private void closeStatements() {
+			for(Statement statement : openStatements) {
+				try {
+					statement.close();
+				} catch(SQLException e) {
+					// The statement is being thrown away regardless
+				}
+			}
+			openStatements.clear();
+		}
+	}
+
+	/**
+	 * Handles calls made on a leased connection. Everything is passed through
+	 * to the real connection apart from close(), which returns it to the pool,
+	 * and prepareStatement(sql), which is served from the statement cache.
+	 */
+	private class Lease implements InvocationHandler {
+		private PoolEntry entry;
+		private boolean write;
+		private long leasedAt;
+		private boolean released;
+
+		private Lease(PoolEntry entry, boolean write) {
+			this.entry = entry;
+			this.write = write;
+			this.leasedAt = System.currentTimeMillis();
+		}
+
+		@Override
+		public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if(method.getDeclaringClass() == Object.class) {
+				switch(name) {
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				default:
+					return "Pooled" + (write ? "Write" : "Read") + "Connection[" + url + "]";
+				}
+			}
+			if(name.equals("close")) {
+				if(!released) {
+					released = true;
+					release(entry, write, leasedAt);
+				}
+				return null;
+			}
+			if(name.equals("isClosed")) {
+				return released;
+			}
+			if(released) {
+				throw new SQLException("Connection has already been returned to the pool");
+			}
+
+			if(name.equals("prepareStatement") && args.length == 1) {
+				PreparedStatement cached = entry.statementCache.prepare(entry.connection, (String) args[0]);
+				if(cached != null) {
+					return cached;
+				}
+			}
+
+			Object result;
+			try {
+				result = method.invoke(entry.connection, args);
+			} catch(InvocationTargetException e) {
+				throw e.getCause();
+			}
+			if(result instanceof Statement) {
+				entry.openStatements.add((Statement) result);
+			}
+			return result;
+		}
+	}
+}
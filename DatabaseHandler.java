@@ -1,10 +1,23 @@
 package yuconz23d;
 
 import java.sql.*;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.util.ArrayList;
 
 /**
@@ -12,34 +25,148 @@ import java.util.ArrayList;
  * any other class which needs access to the stored data.
  */
 public class DatabaseHandler {
+	private static final String AUTH_DB = "YuconzAuth.db";
+	private static final String HR_DB = "YuconzHR.db";
+	private static final String BUSY_TIMEOUT = "PRAGMA busy_timeout = 5000";
+	// Every DatabaseHandler shares the same pools, so handlers can be created freely.
+	// Each database is attached to the other's connections, as "hr" and "auth", so queries can span both
+	private static final ConnectionPool authPool = new ConnectionPool("jdbc:sqlite:" + AUTH_DB, BUSY_TIMEOUT,
+			"ATTACH DATABASE '" + HR_DB + "' AS hr");
+	private static final ConnectionPool hrPool = new ConnectionPool("jdbc:sqlite:" + HR_DB, BUSY_TIMEOUT,
+			"ATTACH DATABASE '" + AUTH_DB + "' AS auth");
+
+	/*
+	 * Works out an employee's highest role from the row aliased "e" (which must have
+	 * an employeeId column) and their Department row aliased "d". A most recent
+	 * promotion to role 3 gives Director, or HR Director (4) in Human Resources,
+	 * otherwise their initial role applies.
+	 */
+	private static final String HIGHEST_ROLE_EXPR = "CASE WHEN"
+			+ " (SELECT p.newRole FROM Promotion p WHERE p.employeeId = e.employeeId"
+			+ " ORDER BY p.startDate DESC LIMIT 1) = 3"
+			+ " THEN CASE WHEN UPPER(d.departmentName) = 'HUMAN RESOURCES' THEN 4 ELSE 3 END"
+			+ " ELSE (SELECT i.initialRole FROM InitialEmploymentDetails i WHERE i.employeeId = e.employeeId)"
+			+ " END";
+	// Joins needed by HIGHEST_ROLE_EXPR when "e" only holds an employeeId
+	private static final String HIGHEST_ROLE_JOINS = " LEFT JOIN Employee emp ON emp.employeeId = e.employeeId"
+			+ " LEFT JOIN Department d ON d.departmentId = emp.departmentId";
+	private static volatile boolean currentRoleTableReady = false;
+	private static volatile boolean permissionVersioningReady = false;
+	// Shared by every DatabaseHandler, so permission checks rarely need to look departments up
+	private static final int DEPARTMENT_CACHE_SIZE = 10000;
+	private static final DepartmentCache departmentCache = new DepartmentCache(DEPARTMENT_CACHE_SIZE);
+	private static volatile boolean departmentsPreloaded = false;
+	private static volatile boolean sessionColumnsReady = false;
+	private static volatile boolean rotationCheckpointsReady = false;
+	// Shared by every DatabaseHandler, created and loaded the first time a session is needed
+	private static volatile SessionStore sessionStore;
+	private static final int DEFAULT_BATCH_SIZE = 500;
+	private static final int DEFAULT_FETCH_SIZE = 100;
+
+	private int batchSize;
+	private int fetchSize;
 
 	public DatabaseHandler() {
+		batchSize = DEFAULT_BATCH_SIZE;
+		fetchSize = DEFAULT_FETCH_SIZE;
+	}
+
+	/**
+	 * Sets how many rows createRecords() writes per transaction
+	 * @param batchSize The number of rows per chunk, must be at least 1
+	 */
+	public void setBatchSize(int batchSize) {
+		if(batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be at least 1");
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return The number of rows createRecords() writes per transaction
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets how many rows the driver is asked to fetch at a time when
+	 * streaming records
+	 * @param fetchSize The number of rows per fetch, must be at least 1
+	 */
+	public void setFetchSize(int fetchSize) {
+		if(fetchSize < 1) {
+			throw new IllegalArgumentException("Fetch size must be at least 1");
+		}
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * @return The number of rows fetched at a time when streaming records
+	 */
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	/**
+	 * Retrieves the pool of connections to the Authentication DB, mainly so
+	 * its metrics can be inspected
+	 * @return The ConnectionPool shared by every DatabaseHandler for the Auth DB
+	 */
+	public static ConnectionPool getAuthPool() {
+		return authPool;
+	}
+
+	/**
+	 * Retrieves the pool of connections to the HR DB, mainly so its metrics
+	 * can be inspected
+	 * @return The ConnectionPool shared by every DatabaseHandler for the HR DB
+	 */
+	public static ConnectionPool getHRPool() {
+		return hrPool;
 	}
 
 	/**
-	 * Creates a connection to the SQLite Authentication database as a sample
+	 * Leases a read connection to the SQLite Authentication database as a sample
 	 * system before Yuconz will allow us to connect to their current system
-	 * implementation.
+	 * implementation. Closing the connection returns it to the pool.
 	 * 
 	 * @return Returns a Connection object with a connection to the Auth DB
 	 * @throws SQLException
 	 *             When an SQL error occurs during the connection
 	 */
 	public Connection connectToAuthDB() throws SQLException {
-		Connection conn = null;
-		conn = DriverManager.getConnection("jdbc:sqlite:YuconzAuth.db");
-		return conn;
+		return authPool.leaseRead();
 	}
 
 	/**
-	 * Creates a connection to the SQLite HR database
+	 * Leases the write connection to the SQLite Authentication database.
+	 * Only one writer is handed out at a time, closing it returns it to the pool.
+	 * @return A Connection object with a connection to the Auth DB for updates
+	 * @throws SQLException When an SQL error occurs during the connection
+	 */
+	public Connection connectToAuthDBForWrite() throws SQLException {
+		return authPool.leaseWrite();
+	}
+
+	/**
+	 * Leases a read connection to the SQLite HR database, closing the
+	 * connection returns it to the pool.
 	 * @return A Connection object with a connection the HR DB
 	 * @throws SQLException When an SQL error occurs during the connection
 	 */
 	public Connection connectToHRDB() throws SQLException {
-		Connection conn = null;
-		conn = DriverManager.getConnection("jdbc:sqlite:YuconzHR.db");
-		return conn;
+		return hrPool.leaseRead();
+	}
+
+	/**
+	 * Leases the write connection to the SQLite HR database.
+	 * Only one writer is handed out at a time, closing it returns it to the pool.
+	 * @return A Connection object with a connection to the HR DB for updates
+	 * @throws SQLException When an SQL error occurs during the connection
+	 */
+	public Connection connectToHRDBForWrite() throws SQLException {
+		return hrPool.leaseWrite();
 	}
 
 	/**
@@ -54,53 +181,133 @@ public class DatabaseHandler {
 	 */
 	public String getPassword(String userID) throws SQLException {
 		Connection conn = connectToAuthDB();
-		PreparedStatement pStatement = conn.prepareStatement("SELECT * FROM Users WHERE userID = ?");
-		pStatement.setString(1, userID);
-		ResultSet results = pStatement.executeQuery();
-		String password = results.getString("password");
-		conn.close();
-		return password;
+		try {
+			PreparedStatement pStatement = conn.prepareStatement("SELECT * FROM Users WHERE userID = ?");
+			pStatement.setString(1, userID);
+			ResultSet results = pStatement.executeQuery();
+			return results.getString("password");
+		} finally {
+			conn.close();
+		}
 	}
 
 	/**
-	 * Register and add a new session to the Authentication Database
+	 * Register and add a new session to the session store, which writes it
+	 * to the Authentication Database shortly afterwards
 	 * 
 	 * @param userId
 	 *            The userID that this session belongs to
 	 * @throws SQLException
-	 *             when a connection/DB update error occurs
+	 *             when the session store couldn't be loaded
 	 */
 	public void addSession(String userId, int authLevel) throws SQLException {
+		getSessionStore().create(userId, authLevel);
+	}
+
+	/**
+	 * Logs a user in on the Authentication Database, without replacing their stored password
+	 * @see #login(String, int, Predicate, UnaryOperator)
+	 */
+	public LoginResult login(String userID, int authLevel, Predicate<String> passwordCheck) throws SQLException {
+		return login(userID, authLevel, passwordCheck, null);
+	}
+
+	/**
+	 * Logs a user in on the Authentication Database. Their password, system
+	 * access, employeeId and highest role are read in one query (with the HR
+	 * DB attached), then the password is checked with no connection held, as
+	 * checking a hashed password is deliberately slow. If it was correct, the
+	 * user must still have system access and have selected a role they're
+	 * offered (Employee, or their highest role) before their stored password
+	 * is replaced when rehash gives a new value and their session is added to
+	 * the session store.
+	 * @param userID The user attempting to log in
+	 * @param authLevel The role level the user selected
+	 * @param passwordCheck Given the user's stored password, decides whether the attempt's password matches it
+	 * @param rehash Given the user's stored password, returns a replacement for it or null to keep it, may be null
+	 * @return LoginResult holding the outcome and, on success, everything needed for the session
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public LoginResult login(String userID, int authLevel, Predicate<String> passwordCheck, UnaryOperator<String> rehash) throws SQLException {
+		ensureCurrentRoleTable();
+		// Promotion and InitialEmploymentDetails in HIGHEST_ROLE_EXPR only exist in the attached HR DB, so resolve there
+		String loginQuery = "SELECT u.password, u.hasSystemAccess, e.employeeId,"
+				+ " CASE WHEN r.employeeId IS NOT NULL THEN r.roleLevel ELSE " + HIGHEST_ROLE_EXPR + " END AS highestRole"
+				+ " FROM Users u"
+				+ " LEFT JOIN hr.Employee e ON e.employeeLogin = u.userID"
+				+ " LEFT JOIN hr.Department d ON d.departmentId = e.departmentId"
+				+ " LEFT JOIN hr.EmployeeCurrentRole r ON r.employeeId = e.employeeId"
+				+ " WHERE u.userID = ?";
+		String correctPassword;
+		boolean hasAccess;
+		String staffNo;
+		Integer highestRole;
 		Connection conn = connectToAuthDB();
-		String sqlQuery = "INSERT INTO Sessions(userId, authLevel) VALUES (?, ?)";
-		PreparedStatement pStatement = conn.prepareStatement(sqlQuery);
-		pStatement.setString(1, userId);
-		pStatement.setInt(2, authLevel);
-		pStatement.execute();
-		conn.close();
+		try {
+			PreparedStatement loginStatement = conn.prepareStatement(loginQuery);
+			loginStatement.setString(1, userID);
+			ResultSet loginResults = loginStatement.executeQuery();
+			if(!loginResults.next()) {
+				return LoginResult.failed(LoginResult.Status.UNKNOWN_USER, userID);
+			}
+			correctPassword = loginResults.getString("password");
+			hasAccess = loginResults.getInt("hasSystemAccess") == 1;
+			staffNo = loginResults.getString("employeeId");
+			highestRole = staffNo == null ? null : nullableInt(loginResults, "highestRole");
+			loginResults.close();
+		} finally {
+			conn.close();
+		}
+
+		if(correctPassword == null || !passwordCheck.test(correctPassword)) {
+			return new LoginResult(LoginResult.Status.WRONG_PASSWORD, userID, null, null, null, false);
+		}
+		if(!hasAccess) {
+			return new LoginResult(LoginResult.Status.NO_SYSTEM_ACCESS, userID, staffNo, null, highestRole, false);
+		}
+		// The same roles as Authentication.getAvailableRoles() offers, a highest role of 0 means suspended
+		if(highestRole == null || highestRole < 1 || (authLevel != 1 && authLevel != highestRole)) {
+			return new LoginResult(LoginResult.Status.ROLE_NOT_PERMITTED, userID, staffNo, null, highestRole, true);
+		}
+		String newPassword = rehash == null ? null : rehash.apply(correctPassword);
+
+		if(newPassword != null) {
+			conn = connectToAuthDBForWrite();
+			try {
+				// Only replaces the password that was checked, in case it was changed in the meantime
+				PreparedStatement passwordStatement = conn.prepareStatement("UPDATE Users SET password = ? WHERE userID = ? AND password = ?");
+				passwordStatement.setString(1, newPassword);
+				passwordStatement.setString(2, userID);
+				passwordStatement.setString(3, correctPassword);
+				passwordStatement.executeUpdate();
+			} finally {
+				conn.close();
+			}
+		}
+		getSessionStore().create(userID, authLevel);
+		return new LoginResult(LoginResult.Status.SUCCESS, userID, staffNo, Role.valueOf(authLevel), highestRole, hasAccess);
 	}
 
 	/**
-	 * Retrieves the details of a session from the Authentication Database
+	 * Retrieves the details of a user's most recent session from the session store
 	 * 
 	 * @param userId
 	 *            The userId that the session belongs to
 	 * @return HashMap<String, String> containing a mapping of all columns in
-	 *         the form: <Column, value>
+	 *         the form: <Column, value>, empty if the user has no unexpired session
 	 * @throws SQLException
-	 *             When a connection or query failure occurs
+	 *             When the session store couldn't be loaded
 	 */
 	public HashMap<String, String> getSessionDetails(String userID) throws SQLException {
 		HashMap<String, String> resultMap = new HashMap<>();
-
-		Connection conn = connectToAuthDB();
-		PreparedStatement pStatement = conn.prepareStatement("SELECT * FROM Sessions WHERE UserID = ?");
-		pStatement.setString(1, userID);
-		ResultSet results = pStatement.executeQuery();
-		resultMap.put("sessionID", results.getString("sessionID"));
-		resultMap.put("userID", results.getString("userID"));
-		resultMap.put("authLevel", results.getInt("authLevel") + "");
-		conn.close();
+		SessionStore.Session session = getSessionStore().getByUser(userID);
+		if(session != null) {
+			resultMap.put("sessionID", session.getSessionId() + "");
+			resultMap.put("userID", session.getUserId());
+			resultMap.put("authLevel", session.getAuthLevel() + "");
+			resultMap.put("createdAt", session.getCreatedAt() + "");
+			resultMap.put("lastAccess", session.getLastAccess() + "");
+		}
 		return resultMap;
 	}
 
@@ -111,15 +318,10 @@ public class DatabaseHandler {
 	 * @param userId
 	 *            The user that is destroying their session
 	 * @throws SQLException
-	 *             when a connection/query error occurs
+	 *             when the session store couldn't be loaded
 	 */
 	public void destroySession(String userID) throws SQLException {
-		Connection conn = connectToAuthDB();
-		String sqlQuery = "DELETE FROM Sessions WHERE userID = ?";
-		PreparedStatement pStatement = conn.prepareStatement(sqlQuery);
-		pStatement.setString(1, userID);
-		pStatement.execute();
-		conn.close();
+		getSessionStore().destroyUser(userID);
 	}
 
 	/**
@@ -129,15 +331,137 @@ public class DatabaseHandler {
 	 * @param sessionId
 	 *            The ID of the session to be destroyed
 	 * @throws SQLException
-	 *             when a connection/query error occurs
+	 *             when the session store couldn't be loaded
 	 */
 	public void destroySession(int sessionID) throws SQLException {
+		getSessionStore().destroy(sessionID);
+	}
+
+	/**
+	 * Retrieves the session store shared by every DatabaseHandler, loading
+	 * it from the Sessions table and starting its sweeper the first time
+	 * @return The shared SessionStore
+	 * @throws SQLException When the stored sessions couldn't be loaded
+	 */
+	public static SessionStore getSessionStore() throws SQLException {
+		if(sessionStore == null) {
+			synchronized(DatabaseHandler.class) {
+				if(sessionStore == null) {
+					SessionStore store = new SessionStore(new DatabaseHandler());
+					store.load();
+					store.start();
+					sessionStore = store;
+				}
+			}
+		}
+		return sessionStore;
+	}
+
+	/**
+	 * Retrieves every row of the Sessions table, for loading the session store
+	 * @return List of sessions, as a mapping of each column to its value
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public ArrayList<LinkedHashMap<String, Object>> getAllSessions() throws SQLException {
+		ensureSessionColumns();
 		Connection conn = connectToAuthDB();
-		String sqlQuery = "DELETE FROM Sessions WHERE sessionID = ?";
-		PreparedStatement pStatement = conn.prepareStatement(sqlQuery);
-		pStatement.setInt(1, sessionID);
-		pStatement.execute();
-		conn.close();
+		try {
+			PreparedStatement sessionStatement = conn.prepareStatement("SELECT sessionID, userID, authLevel, createdAt, lastAccess FROM Sessions");
+			return queryToList(sessionStatement.executeQuery());
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Retrieves the highest sessionID ever stored, so new sessions can carry on from it
+	 * @return The highest sessionID, 0 if there have been none
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public int getMaxSessionId() throws SQLException {
+		Connection conn = connectToAuthDB();
+		try {
+			PreparedStatement maxStatement = conn.prepareStatement("SELECT MAX(sessionID) FROM Sessions");
+			ResultSet results = maxStatement.executeQuery();
+			int max = results.next() ? results.getInt(1) : 0;
+			results.close();
+			return max;
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Writes changes from the session store to the Sessions table in one transaction
+	 * @param saved Sessions which were added or used, inserted or replaced in full
+	 * @param deleted IDs of sessions which ended
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public void writeSessions(Collection<SessionStore.Session> saved, Collection<Integer> deleted) throws SQLException {
+		ensureSessionColumns();
+		Connection conn = connectToAuthDBForWrite();
+		try {
+			conn.setAutoCommit(false);
+			if(!saved.isEmpty()) {
+				PreparedStatement saveStatement = conn.prepareStatement("INSERT OR REPLACE INTO Sessions"
+						+ " (sessionID, userID, authLevel, createdAt, lastAccess) VALUES (?, ?, ?, ?, ?)");
+				for(SessionStore.Session session : saved) {
+					saveStatement.setInt(1, session.getSessionId());
+					saveStatement.setString(2, session.getUserId());
+					saveStatement.setInt(3, session.getAuthLevel());
+					saveStatement.setLong(4, session.getCreatedAt());
+					saveStatement.setLong(5, session.getLastAccess());
+					saveStatement.addBatch();
+				}
+				saveStatement.executeBatch();
+			}
+			if(!deleted.isEmpty()) {
+				PreparedStatement deleteStatement = conn.prepareStatement("DELETE FROM Sessions WHERE sessionID = ?");
+				for(int sessionID : deleted) {
+					deleteStatement.setInt(1, sessionID);
+					deleteStatement.addBatch();
+				}
+				deleteStatement.executeBatch();
+			}
+			conn.commit();
+		} finally {
+			conn.close(); // Any unfinished transaction is rolled back as the connection returns to the pool
+		}
+	}
+
+	/**
+	 * Adds the createdAt and lastAccess columns to the Sessions table the
+	 * first time they are needed, if it doesn't already have them
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	private static void ensureSessionColumns() throws SQLException {
+		if(sessionColumnsReady) {
+			return;
+		}
+		synchronized(DatabaseHandler.class) {
+			if(sessionColumnsReady) {
+				return;
+			}
+			Connection conn = authPool.leaseWrite();
+			try {
+				HashSet<String> columns = new HashSet<>();
+				ResultSet existing = conn.createStatement().executeQuery("PRAGMA main.table_info(Sessions)");
+				while(existing.next()) {
+					columns.add(existing.getString("name").toLowerCase());
+				}
+				existing.close();
+				Statement alterStatement = conn.createStatement();
+				if(!columns.contains("createdat")) {
+					alterStatement.executeUpdate("ALTER TABLE Sessions ADD COLUMN createdAt INTEGER");
+				}
+				if(!columns.contains("lastaccess")) {
+					alterStatement.executeUpdate("ALTER TABLE Sessions ADD COLUMN lastAccess INTEGER");
+				}
+				sessionColumnsReady = true;
+			} finally {
+				conn.close();
+			}
+		}
 	}
 
 	/**
@@ -159,37 +483,34 @@ public class DatabaseHandler {
 	 * @throws IllegalArgumentException when an invalid userID is provided
 	 */
 	public Integer getHighestRoleByLogin(String userID) throws SQLException, IllegalArgumentException {
-		// Check if the userId has system access
-		Connection authConn = connectToAuthDB();
-		String accessQuery = "SELECT * FROM Users where userID = ?";
-		PreparedStatement accessStatement = authConn.prepareStatement(accessQuery);
-		accessStatement.setString(1, userID);
-		ResultSet accessResults = accessStatement.executeQuery();
-		if(!accessResults.next()) {
-			authConn.close();
-			throw new IllegalArgumentException("Invalid username supplied");
-		}
-
-		boolean hasAccess = accessResults.getInt("hasSystemAccess") == 1 ? true : false;
-		if (!hasAccess) {
-			authConn.close();
-			return 0;
-		}
-		authConn.close();
-
-		// Since they do have system access, find their roles via employee ID
+		ensureCurrentRoleTable();
+		// Access, employee and role are all resolved by one query across both databases,
+		// the role is only worked out from scratch if it hasn't been stored in EmployeeCurrentRole
+		String roleQuery = "SELECT u.hasSystemAccess, e.employeeId,"
+				+ " CASE WHEN r.employeeId IS NOT NULL THEN r.roleLevel ELSE " + HIGHEST_ROLE_EXPR + " END AS highestRole"
+				+ " FROM auth.Users u"
+				+ " LEFT JOIN Employee e ON e.employeeLogin = u.userID"
+				+ " LEFT JOIN Department d ON d.departmentId = e.departmentId"
+				+ " LEFT JOIN EmployeeCurrentRole r ON r.employeeId = e.employeeId"
+				+ " WHERE u.userID = ?";
 		Connection conn = connectToHRDB();
-		String staffNoQuery = "Select * From Employee where employeeLogin = ?";
-		PreparedStatement pStatement = conn.prepareStatement(staffNoQuery);
-		pStatement.setString(1, userID);
-		ResultSet results = pStatement.executeQuery();
-		String employeeId = null;
 		try {
-			employeeId = results.getString("employeeId");
-			return getHighestRoleByEmployee(employeeId);
-		} catch (SQLException e) {
-			e.printStackTrace();
-			return null;
+			PreparedStatement roleStatement = conn.prepareStatement(roleQuery);
+			roleStatement.setString(1, userID);
+			ResultSet roleResults = roleStatement.executeQuery();
+			if(!roleResults.next()) {
+				throw new IllegalArgumentException("Invalid username supplied");
+			}
+
+			boolean hasAccess = roleResults.getInt("hasSystemAccess") == 1 ? true : false;
+			if (!hasAccess) {
+				return 0;
+			}
+			if(roleResults.getString("employeeId") == null) {
+				System.err.println("No employee found for user " + userID);
+				return null;
+			}
+			return nullableInt(roleResults, "highestRole");
 		} finally {
 			conn.close();
 		}
@@ -199,54 +520,169 @@ public class DatabaseHandler {
 	 * Retrieves the highest possible role a given user can have. This is the
 	 * highest job role they have within the company. This is found from
 	 * the HR database by searching for either the most recent promotion
-	 * record which contains a new role or their initial employment details
+	 * record which contains a new role or their initial employment details.
+	 * The result is kept up to date in the EmployeeCurrentRole table, so this is
+	 * normally a single lookup by employeeId.
 	 * @param employeeId Takes the employee's 6 digit Id to search the database
-	 * @return An integer representing the highest role the user has
-	 * @throws SQLException 
+	 * @return An integer representing the highest role the user has, null if it couldn't be found
+	 * @throws SQLException When an SQL connection/transaction error occurs
 	 */
 	public Integer getHighestRoleByEmployee(String employeeId) throws SQLException {
+		ensureCurrentRoleTable();
 		Connection conn = connectToHRDB();
-		// Select only the most recent promotion record for this employee
-		String promotionsQuery = "SELECT * FROM Promotion" 
-				+ " WHERE employeeId = ?"
-				+ " ORDER BY startDate DESC"
-				+ " LIMIT 1";
-		PreparedStatement promoStatement = conn.prepareStatement(promotionsQuery);
-		promoStatement.setString(1, employeeId);
-		ResultSet promoResults = promoStatement.executeQuery();
-
-		if(promoResults.next()) { // the query has results
-			Integer mostRecentRole = promoResults.getInt("newRole");
-			if(mostRecentRole.equals(3)) {
-				try {
-					String employeeDepartment = getDepartment(employeeId);
-					if(employeeDepartment.equalsIgnoreCase("Human Resources")) {
-						return 4;
-					} else {
-						return 3;
-					}
-				} catch(SQLException e) {
-					System.err.println("sql error:" + e.getMessage());
-					System.err.println("Deparment assumed to be non-hr");
-					return 3;
-				} finally {
-					conn.close();
-				}
+		try {
+			PreparedStatement currentStatement = conn.prepareStatement(
+					"SELECT roleLevel FROM EmployeeCurrentRole WHERE employeeId = ?");
+			currentStatement.setString(1, employeeId);
+			ResultSet currentResults = currentStatement.executeQuery();
+			if(currentResults.next()) {
+				return nullableInt(currentResults, "roleLevel");
 			}
+
+			// Not stored yet (e.g. added outside of this system), so work it out from scratch.
+			// The employee's own row is optional, only their department is looked up through it
+			String roleQuery = "SELECT " + HIGHEST_ROLE_EXPR + " AS highestRole"
+					+ " FROM (SELECT ? AS employeeId) e"
+					+ HIGHEST_ROLE_JOINS;
+			PreparedStatement roleStatement = conn.prepareStatement(roleQuery);
+			roleStatement.setString(1, employeeId);
+			ResultSet roleResults = roleStatement.executeQuery();
+			roleResults.next(); // Always exactly one row
+			return nullableInt(roleResults, "highestRole");
+		} finally {
+			conn.close();
 		}
-		// No promotion records found then..
-		// Select their initial role from their InitialEmploymentDetails
-		String IEDQuery = "SELECT initialRole"
-				+ " FROM InitialEmploymentDetails"
-				+ " WHERE employeeId = ?;";
+	}
 
-		PreparedStatement IEDStatement = conn.prepareStatement(IEDQuery);
-		IEDStatement.setString(1, employeeId);
-		ResultSet IEDResults = IEDStatement.executeQuery();
-		Integer initialRole = IEDResults.getInt("initialRole");
-		conn.close();
-		return initialRole;
+	/**
+	 * Recalculates the stored current role of every employee, replacing the
+	 * whole EmployeeCurrentRole table. This should be run after Promotion,
+	 * InitialEmploymentDetails or Employee records are changed outside of
+	 * this system.
+	 * @return The number of employees whose role was stored
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public int rebuildCurrentRoles() throws SQLException {
+		ensureCurrentRoleTable();
+		Connection conn = connectToHRDBForWrite();
+		try {
+			conn.setAutoCommit(false);
+			int rebuilt = rebuildCurrentRoles(conn);
+			conn.commit();
+			return rebuilt;
+		} finally {
+			conn.close(); // Any unfinished transaction is rolled back as the connection returns to the pool
+		}
+	}
+
+	/**
+	 * Recalculates every employee's stored role on the given connection,
+	 * the caller is responsible for the transaction
+	 * @param conn The HR write connection
+	 * @return The number of employees whose role was stored
+	 * @throws SQLException When an SQL transaction error occurs
+	 */
+	private static int rebuildCurrentRoles(Connection conn) throws SQLException {
+		Statement rebuildStatement = conn.createStatement();
+		rebuildStatement.executeUpdate("DELETE FROM EmployeeCurrentRole");
+		// Anyone with a role defining record is included, even without an Employee row
+		return rebuildStatement.executeUpdate("INSERT INTO EmployeeCurrentRole (employeeId, roleLevel)"
+				+ " SELECT e.employeeId, " + HIGHEST_ROLE_EXPR
+				+ " FROM (SELECT employeeId FROM Employee"
+				+ " UNION SELECT employeeId FROM InitialEmploymentDetails"
+				+ " UNION SELECT employeeId FROM Promotion) e"
+				+ HIGHEST_ROLE_JOINS);
+	}
+
+	/**
+	 * Recalculates the stored current role of the employees that the given
+	 * records belong to, if the records are of a type that decides roles.
+	 * This runs on the same connection (and transaction) as the write itself.
+	 * @param conn The HR write connection the records were written on
+	 * @param recordType The type of the records that were written
+	 * @param writtenRecords The records that were written
+	 * @throws SQLException When an SQL transaction error occurs
+	 */
+	private void refreshCurrentRoles(Connection conn, RecordType recordType, Collection<Record> writtenRecords) throws SQLException {
+		if(!affectsCurrentRole(recordType)) {
+			return;
+		}
+		PreparedStatement refreshStatement = conn.prepareStatement(
+				"INSERT OR REPLACE INTO EmployeeCurrentRole (employeeId, roleLevel)"
+				+ " SELECT e.employeeId, " + HIGHEST_ROLE_EXPR
+				+ " FROM (SELECT ? AS employeeId) e"
+				+ HIGHEST_ROLE_JOINS);
+		Set<Object> refreshed = new HashSet<>();
+		for(Record written : writtenRecords) {
+			Object employeeId = written.getValue("employeeId");
+			if(employeeId != null && refreshed.add(employeeId)) {
+				refreshStatement.setObject(1, employeeId);
+				refreshStatement.executeUpdate();
+			}
+		}
+	}
 
+	/**
+	 * Checks whether writing a type of record can change an employee's current role
+	 * @param recordType The type of record being written
+	 * @return true for Promotion, InitialEmploymentDetails and Employee (department) records
+	 */
+	private static boolean affectsCurrentRole(RecordType recordType) {
+		switch(recordType) {
+		case Promotion:
+		case InitialEmploymentDetails:
+		case Employee:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Creates the EmployeeCurrentRole table the first time it is needed,
+	 * filling it with every employee's current role
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	private static void ensureCurrentRoleTable() throws SQLException {
+		if(currentRoleTableReady) {
+			return;
+		}
+		synchronized(DatabaseHandler.class) {
+			if(currentRoleTableReady) {
+				return;
+			}
+			Connection conn = hrPool.leaseWrite();
+			try {
+				conn.setAutoCommit(false);
+				DatabaseMetaData metaData = conn.getMetaData();
+				ResultSet existing = metaData.getTables(null, null, "EmployeeCurrentRole", null);
+				boolean exists = existing.next();
+				existing.close();
+				if(!exists) {
+					Statement createStatement = conn.createStatement();
+					createStatement.executeUpdate("CREATE TABLE EmployeeCurrentRole ("
+							+ "employeeId TEXT PRIMARY KEY,"
+							+ " roleLevel INTEGER)");
+					rebuildCurrentRoles(conn);
+				}
+				conn.commit();
+				currentRoleTableReady = true;
+			} finally {
+				conn.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads an integer column which may be NULL
+	 * @param results The ResultSet positioned on the row to read
+	 * @param column The name of the column to read
+	 * @return The column's value, null when it is NULL
+	 * @throws SQLException When the column couldn't be read
+	 */
+	private Integer nullableInt(ResultSet results, String column) throws SQLException {
+		int value = results.getInt(column);
+		return results.wasNull() ? null : value;
 	}
 
 	/**
@@ -256,18 +692,7 @@ public class DatabaseHandler {
 	 * @throws SQLException When an SQL error occurs during connection/retrieval
 	 */
 	public String getDepartment(String employeeId) throws SQLException {
-		Connection conn = connectToHRDB();
-		// Select the department name of this employee
-		String deptQuery = "SELECT d.departmentName FROM Employee e JOIN"
-				+ " Department d ON e.departmentId AND d.departmentId"
-				+ " WHERE e.departmentId = d.departmentId"
-				+ " AND e.employeeId = ?";
-		PreparedStatement deptStatement = conn.prepareStatement(deptQuery);
-		deptStatement.setString(1, employeeId);
-		ResultSet deptResult = deptStatement.executeQuery();
-		String departmentName = deptResult.getString("departmentName");
-		conn.close();
-		return departmentName;
+		return lookupDepartment(employeeId).getName();
 	}
 
 	/**
@@ -277,20 +702,91 @@ public class DatabaseHandler {
 	 * @throws SQLException When an SQL connection/transaction error occurs
 	 */
 	public int getDepartmentId(String employeeId) throws SQLException {
+		return lookupDepartment(employeeId).getId();
+	}
+
+	/**
+	 * Finds an employee's department through the department cache, loading
+	 * every employee's department the first time it's used
+	 * @param employeeId The employeeId to search for
+	 * @return The employee's Department, Department.UNKNOWN if not found
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	private DepartmentCache.Department lookupDepartment(String employeeId) throws SQLException {
+		if(!departmentsPreloaded) {
+			preloadDepartments();
+		}
+		DepartmentCache.Department cached = departmentCache.get(employeeId);
+		if(cached != null) {
+			return cached;
+		}
+
+		long generation = departmentCache.getGeneration();
+		Connection conn = connectToHRDB();
+		try {
+			// Select the department of this employee
+			String deptQuery = "SELECT d.departmentId, d.departmentName FROM Employee e"
+					+ " JOIN Department d ON d.departmentId = e.departmentId"
+					+ " WHERE e.employeeId = ?";
+			PreparedStatement deptStatement = conn.prepareStatement(deptQuery);
+			deptStatement.setString(1, employeeId);
+			ResultSet deptResult = deptStatement.executeQuery();
+			DepartmentCache.Department department = DepartmentCache.Department.UNKNOWN;
+			if(deptResult.next()) {
+				department = new DepartmentCache.Department(deptResult.getInt("departmentId"), deptResult.getString("departmentName"));
+			}
+			departmentCache.put(employeeId, department, generation);
+			return department;
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Loads the department of every employee into the department cache in one
+	 * query, up to as many employees as the cache holds
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public void preloadDepartments() throws SQLException {
+		long generation = departmentCache.getGeneration();
+		HashMap<String, DepartmentCache.Department> departments = new HashMap<>();
 		Connection conn = connectToHRDB();
-		// Select the department name of this employee
-		String deptQuery = "SELECT * FROM Employee e JOIN"
-				+ " Department d ON e.departmentId AND d.departmentId"
-				+ " WHERE e.departmentId = d.departmentId"
-				+ " AND e.employeeId = ?";
-		PreparedStatement deptStatement = conn.prepareStatement(deptQuery);
-		deptStatement.setString(1, employeeId);
-		ResultSet deptResult = deptStatement.executeQuery();
-		int departmentId = 0;
-		departmentId = deptResult.getInt("departmentId");
+		try {
+			String deptQuery = "SELECT e.employeeId, d.departmentId, d.departmentName FROM Employee e"
+					+ " JOIN Department d ON d.departmentId = e.departmentId LIMIT ?";
+			PreparedStatement deptStatement = conn.prepareStatement(deptQuery);
+			deptStatement.setInt(1, departmentCache.getMaxEntries());
+			deptStatement.setFetchSize(fetchSize);
+			ResultSet deptResults = deptStatement.executeQuery();
+			while(deptResults.next()) {
+				departments.put(deptResults.getString("employeeId"),
+						new DepartmentCache.Department(deptResults.getInt("departmentId"), deptResults.getString("departmentName")));
+			}
+		} finally {
+			conn.close();
+		}
+		departmentCache.putAll(departments, generation);
+		departmentsPreloaded = true;
+	}
 
-		conn.close();
-		return departmentId;
+	/**
+	 * Retrieves the cache of employees' departments shared by every DatabaseHandler
+	 * @return The DepartmentCache
+	 */
+	public static DepartmentCache getDepartmentCache() {
+		return departmentCache;
+	}
+
+	/**
+	 * Forgets the cached departments of any employees whose Employee record was written
+	 * @param records The records written, of any type
+	 */
+	private static void invalidateDepartments(Collection<Record> records) {
+		for(Record written : records) {
+			if(written != null && written.getRecordType() == RecordType.Employee) {
+				departmentCache.invalidate(Objects.toString(written.getValue("employeeId"), null));
+			}
+		}
 	}
 
 	/**
@@ -301,18 +797,19 @@ public class DatabaseHandler {
 	 */
 	public String getEmployeeIdByLogin(String userId) throws SQLException {
 		Connection conn = connectToHRDB();
-		String employeeIdQuery = "SELECT * FROM Employee WHERE employeeLogin = ?";
-		PreparedStatement employeeIdStatement = conn.prepareStatement(employeeIdQuery);
-		employeeIdStatement.setString(1, userId);
+		try {
+			String employeeIdQuery = "SELECT * FROM Employee WHERE employeeLogin = ?";
+			PreparedStatement employeeIdStatement = conn.prepareStatement(employeeIdQuery);
+			employeeIdStatement.setString(1, userId);
 
-		ResultSet employeeIdResult = employeeIdStatement.executeQuery();
-		if(employeeIdResult.next()) {
-			String employeeId = employeeIdResult.getString("employeeId");
-			conn.close();
-			return employeeId;
-		} else {
+			ResultSet employeeIdResult = employeeIdStatement.executeQuery();
+			if(employeeIdResult.next()) {
+				return employeeIdResult.getString("employeeId");
+			} else {
+				return null;
+			}
+		} finally {
 			conn.close();
-			return null;
 		}
 	}
 	
@@ -331,37 +828,88 @@ public class DatabaseHandler {
 	 * @throws SQLException When an SQL connection/transactio error occurs
 	 */
 	public Object retrieveRecord(String employeeId, RecordType recordType) throws SQLException {
-		Connection conn = connectToHRDB();
-		String targetTable = recordType.name();
-		targetTable = targetTable.replace(" ", ""); // Remove spaces, makes it into an SQL-ready table name
-		
-		String retrieveQry = "SELECT * FROM " + targetTable + " WHERE employeeId=?";
-		
-		PreparedStatement retrieveStmnt = conn.prepareStatement(retrieveQry);
-		retrieveStmnt.setString(1, employeeId);
-		
-		ResultSet results = retrieveStmnt.executeQuery();
-		ArrayList<LinkedHashMap<String, Object>> rows = queryToList(results);
 		List<Record> records = new ArrayList<Record>();
-		for(LinkedHashMap<String,Object> row : rows) {
-			Record current = new Record(recordType, row);
-			records.add(current);
-		}
-		
+		RecordCursor cursor = openRecordCursor(recordType, employeeId);
 		try {
-			if(records.size() == 1) {
-				return records.get(0);
-			}
-			else if(records.size() > 1) {
-				return records;
-			} else {
-				return null;
+			while(cursor.hasNext()) {
+				records.add(cursor.next());
 			}
+		} catch(IllegalStateException e) {
+			throw unwrapCursorException(e);
 		} finally {
-			conn.close();
+			cursor.close();
+		}
+
+		if(records.size() == 1) {
+			return records.get(0);
+		}
+		else if(records.size() > 1) {
+			return records;
+		} else {
+			return null;
 		}
 	}
 
+	/**
+	 * Opens a cursor over the records of the given type, reading each one
+	 * from the database only as it is needed rather than all at once.
+	 * The cursor holds a connection until it is read to the end or closed,
+	 * so it should always be closed, ideally with try-with-resources.
+	 * @param recordType The type of record(s) to be read
+	 * @param employeeId The employeeId whose records should be read, null to read every record of this type
+	 * @return RecordCursor positioned before the first matching record
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public RecordCursor openRecordCursor(RecordType recordType, String employeeId) throws SQLException {
+		String retrieveQry = "SELECT * FROM " + recordType.name(); // Enum names match the DB table names
+		if(employeeId != null) {
+			retrieveQry += " WHERE employeeId=?";
+		}
+
+		Connection conn = connectToHRDB();
+		try {
+			PreparedStatement retrieveStmnt = conn.prepareStatement(retrieveQry);
+			retrieveStmnt.setFetchSize(fetchSize);
+			if(employeeId != null) {
+				retrieveStmnt.setString(1, employeeId);
+			}
+			return new RecordCursor(recordType, retrieveStmnt.executeQuery(), conn);
+		} catch(SQLException | RuntimeException e) {
+			conn.close(); // The cursor never took ownership of the connection
+			throw e;
+		}
+	}
+
+	/**
+	 * Streams the records of the given type, mapping each row to a Record
+	 * lazily as the stream is consumed. This is intended for reporting over
+	 * large numbers of records, e.g. every salary increase ever made.
+	 * The stream holds a connection until it is closed, so it must be used
+	 * within try-with-resources (or closed explicitly).
+	 * Errors whilst reading rows are thrown as IllegalStateException.
+	 * @param recordType The type of record(s) to be streamed
+	 * @param employeeId The employeeId whose records should be streamed, null to stream every record of this type
+	 * @return Stream<Record> of the matching records
+	 * @throws SQLException When an SQL connection/transaction error occurs running the query
+	 */
+	public Stream<Record> streamRecords(RecordType recordType, String employeeId) throws SQLException {
+		RecordCursor cursor = openRecordCursor(recordType, employeeId);
+		Spliterator<Record> rows = Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.stream(rows, false).onClose(cursor::close);
+	}
+
+	/**
+	 * Turns a failure reading from a RecordCursor back into the SQLException that caused it
+	 * @param e The exception thrown by the cursor
+	 * @return The original SQLException, or a new one wrapping e
+	 */
+	private SQLException unwrapCursorException(IllegalStateException e) {
+		if(e.getCause() instanceof SQLException) {
+			return (SQLException) e.getCause();
+		}
+		return new SQLException(e.getMessage(), e);
+	}
+
 
 	/**
 	 * Used to create a new record after it has been constructed in the GUI
@@ -372,63 +920,141 @@ public class DatabaseHandler {
 	 * @throws SQLException When an SQL connection/transaction error occurs
 	 */
 	public boolean createRecord(Record newRecord) throws SQLException {
-		Connection conn = connectToHRDB();
+		if(!newRecord.hasValues()) {
+			return false;
+		}
+		WritePlan plan = WritePlan.forType(newRecord.getRecordType());
 
-		String tableName = newRecord.getRecordType().toString();
-		tableName = tableName.replace(" ", ""); // Remove spaces to make it match the DB table names
+		boolean affectsRole = affectsCurrentRole(newRecord.getRecordType());
+		if(affectsRole) {
+			ensureCurrentRoleTable();
+		}
 
-		List<Column> recordColumns = newRecord.getRecordType().getColumns();
+		Connection conn = connectToHRDBForWrite();
+		try {
+			if(affectsRole) {
+				conn.setAutoCommit(false); // The record and the employee's current role change together
+			}
+			PreparedStatement createPStmnt = conn.prepareStatement(plan.getInsertSql());
+			plan.bindInsert(createPStmnt, newRecord);
+			boolean qrySuccess = createPStmnt.execute();
+			if(affectsRole) {
+				refreshCurrentRoles(conn, newRecord.getRecordType(), Collections.singleton(newRecord));
+				conn.commit();
+			}
+			return qrySuccess;
+		} finally {
+			conn.close(); // Any unfinished transaction is rolled back as the connection returns to the pool
+			invalidateDepartments(Collections.singleton(newRecord));
+		}
+	}
 
-		HashMap<String, Object> recordValues = newRecord.getRecordAsMap();
+	/**
+	 * Creates many new records at once, for example when loading a year's worth
+	 * of annual reviews. Records are grouped by their RecordType and written in
+	 * chunks of getBatchSize() rows, each chunk in its own transaction. When a
+	 * chunk fails it is rolled back and its rows are retried one at a time, so
+	 * a single bad row doesn't stop the rest of the chunk from being saved.
+	 * Note: This method assumes the records have been previously validated
+	 * by the App Controler before submission!
+	 * @param newRecords The records to be inserted
+	 * @return BatchResult containing how many records were inserted and which ones failed
+	 * @throws SQLException When an SQL connection/transaction error occurs outside of a single row
+	 */
+	public BatchResult createRecords(Collection<Record> newRecords) throws SQLException {
+		BatchResult result = new BatchResult(newRecords.size());
+		List<Record> submitted = new ArrayList<>(newRecords);
 
+		// Group the position of each record by type, so each type needs only one statement
+		EnumMap<RecordType, List<Integer>> byType = new EnumMap<>(RecordType.class);
+		for(int i=0; i < submitted.size(); i++) {
+			Record current = submitted.get(i);
+			if(current == null || !current.hasValues()) {
+				result.addFailure(i, current, "Record has no values");
+				continue;
+			}
+			List<Integer> indexes = byType.get(current.getRecordType());
+			if(indexes == null) {
+				indexes = new ArrayList<>();
+				byType.put(current.getRecordType(), indexes);
+			}
+			indexes.add(i);
+		}
+		if(byType.isEmpty()) {
+			return result;
+		}
+		for(RecordType recordType : byType.keySet()) {
+			if(affectsCurrentRole(recordType)) {
+				ensureCurrentRoleTable();
+			}
+		}
 
-		if(recordValues != null) {
-			String columnNames = "(";
-			Iterator<Column> it = recordColumns.iterator();
+		Connection conn = connectToHRDBForWrite();
+		try {
+			conn.setAutoCommit(false);
+			for(Map.Entry<RecordType, List<Integer>> group : byType.entrySet()) {
+				WritePlan plan = WritePlan.forType(group.getKey());
+				PreparedStatement createPStmnt = conn.prepareStatement(plan.getInsertSql());
+				List<Integer> indexes = group.getValue();
 
-			while(it.hasNext()) {
-				Column currentColumn = it.next();
-				if(!currentColumn.isHidden()) {
-					columnNames += currentColumn.getName();
-					if(it.hasNext()) {
-						columnNames += ", ";
+				for(int start=0; start < indexes.size(); start += batchSize) {
+					List<Integer> chunk = indexes.subList(start, Math.min(start + batchSize, indexes.size()));
+					try {
+						List<Record> chunkRecords = new ArrayList<>(chunk.size());
+						for(int index : chunk) {
+							chunkRecords.add(submitted.get(index));
+							plan.bindInsert(createPStmnt, submitted.get(index));
+							createPStmnt.addBatch();
+						}
+						createPStmnt.executeBatch();
+						refreshCurrentRoles(conn, group.getKey(), chunkRecords);
+						conn.commit();
+						result.addInserted(chunk.size());
+					} catch(SQLException e) {
+						conn.rollback();
+						createPStmnt.clearBatch();
+						insertIndividually(conn, createPStmnt, plan, submitted, chunk, result);
 					}
 				}
 			}
-			columnNames += ")";
-			// Remove trailing commas if they were added when it.hasNext() was true but the next value's isHidden is true
-			columnNames = columnNames.replace(", )", ")");
-
-			String valuePlaceholders = "VALUES (";
-			for(int i=0; i < recordValues.size(); i++) {
-				if(i == 0) {
-					valuePlaceholders += "?";
-				} else {
-					valuePlaceholders += ", ?";
-				}
+		} finally {
+			try {
+				conn.setAutoCommit(true);
+			} finally {
+				conn.close();
+				invalidateDepartments(newRecords);
 			}
-			valuePlaceholders += ");";
-
-			String createQry = "INSERT INTO ";
-			createQry += tableName;
-			createQry += " ";
-			createQry += columnNames;
-			createQry += " ";
-			createQry += valuePlaceholders;
+		}
+		return result;
+	}
 
-			PreparedStatement createPStmnt = conn.prepareStatement(createQry);
-			int objIndex = 1;
-			for(Object currentValue : recordValues.values()) {
-				createPStmnt.setObject(objIndex, currentValue);
-				createQry = createQry.replaceFirst("[?]", currentValue + "");
-				objIndex++;
+	/**
+	 * Retries a failed chunk of createRecords() one row at a time so that each
+	 * bad row can be reported, committing whichever rows succeed
+	 * @param conn The write connection, with auto-commit off
+	 * @param createPStmnt The INSERT statement of the chunk's RecordType
+	 * @param plan The write plan of the chunk's RecordType
+	 * @param submitted Every record that was submitted to createRecords()
+	 * @param chunk The positions of the records in this chunk
+	 * @param result The BatchResult to record inserts and failures in
+	 * @throws SQLException When the successful rows couldn't be committed
+	 */
+	private void insertIndividually(Connection conn, PreparedStatement createPStmnt, WritePlan plan,
+			List<Record> submitted, List<Integer> chunk, BatchResult result) throws SQLException {
+		List<Record> insertedRecords = new ArrayList<>();
+		for(int index : chunk) {
+			Record current = submitted.get(index);
+			try {
+				plan.bindInsert(createPStmnt, current);
+				createPStmnt.executeUpdate();
+				insertedRecords.add(current);
+			} catch(SQLException e) {
+				result.addFailure(index, current, e.getMessage());
 			}
-			boolean qrySuccess = createPStmnt.execute();
-			conn.close();
-			return qrySuccess;
 		}
-		conn.close();
-		return false;
+		refreshCurrentRoles(conn, plan.getRecordType(), insertedRecords);
+		conn.commit();
+		result.addInserted(insertedRecords.size());
 	}
 
 	/**
@@ -441,107 +1067,33 @@ public class DatabaseHandler {
 	 * @throws SQLException when an SQL connection/transaction error occurs
 	 */
 	public boolean updateRecord(Record newRecord) throws SQLException {
-		Connection conn = connectToHRDB();
+		if(!newRecord.hasValues()) {
+			return false;
+		}
+		WritePlan plan = WritePlan.forType(newRecord.getRecordType());
 
-		String targetTable = newRecord.getRecordType().name();
-		targetTable = targetTable.replace(" ", "");
-
-		List<Column> recordColumns = newRecord.getRecordType().getColumns();
-		LinkedHashMap<String, Object> recordValues = newRecord.getRecordAsMap();
-
-		if(recordValues != null) {
-			String setValues = "SET ";
-			Iterator<Column> it = recordColumns.iterator();
-			while(it.hasNext()) {
-				Column currCol = it.next();
-				if(!currCol.isHidden() && currCol.isEditable()) { // Column is displayed and editable
-					String columnName = currCol.getName();
-					setValues += columnName + "=?";
-					if(it.hasNext()) {
-						setValues += ", ";
-					}
-				}
-			}
-			// Remove trailing commas, in the un-implemented case where a final value could be hidden
-		
-			String whereClause = "";
-			switch(newRecord.getRecordType()){
-			case Employee:
-			case PersonalDetails:
-			case InitialEmploymentDetails:
-			case Termination:
-				whereClause += "WHERE employeeId=?";
-				break;
-			case Probation:
-				whereClause += "WHERE employeeId=? AND startDate=?";
-				break;
-			case Promotion:
-				whereClause += "WHERE promotionId=?";
-				break;
-			case SalaryIncrease:
-				whereClause += "WHERE employeeId=? AND startDate=?";
-				break;
-			case AnnualReview:
-				whereClause += "WHERE employeeId=? and reviewDate=?";  // TODO: Review database definition of performanceReview
-				break;
-			}
-			
-			String updateQry = "UPDATE ";
-			updateQry += targetTable;
-			updateQry += " ";
-			updateQry += setValues;
-			updateQry += " ";
-			updateQry += whereClause;
-			
-			PreparedStatement updateStmnt = conn.prepareStatement(updateQry);
-			it = recordColumns.iterator();
-			int objIndex = 1;
-			while(it.hasNext()) {
-				Column currCol = it.next();
-				if(!currCol.isHidden() && currCol.isEditable()) {
-					Object currValue = recordValues.get(currCol.getName());
-					updateStmnt.setObject(objIndex, currValue);
-					objIndex++;
-				}
+		boolean affectsRole = affectsCurrentRole(newRecord.getRecordType());
+		if(affectsRole) {
+			ensureCurrentRoleTable();
+		}
+
+		Connection conn = connectToHRDBForWrite();
+		try {
+			if(affectsRole) {
+				conn.setAutoCommit(false); // The record and the employee's current role change together
 			}
-			
-			
-			int lastPlaceHolderIndex = 0;
-			lastPlaceHolderIndex = updateQry.length() - updateQry.replace("?", "").length();
-			// Gives an accessible index for the below switch statement to access where clause's placeholder
-			switch(newRecord.getRecordType()) {
-			case Employee:
-			case PersonalDetails:
-			case InitialEmploymentDetails:
-			case Termination:
-				Object employeeId = recordValues.get("employeeId");
-				updateStmnt.setObject(lastPlaceHolderIndex, employeeId);
-				break;
-			case Probation:
-			case SalaryIncrease:
-				employeeId = recordValues.get("employeeId");
-				Object startDate = recordValues.get("startDate");
-				updateStmnt.setObject(lastPlaceHolderIndex -1, employeeId);
-				updateStmnt.setObject(lastPlaceHolderIndex, startDate);
-				break;
-			case Promotion:
-				Object promoId = recordValues.get("promotionId");
-				updateStmnt.setObject(lastPlaceHolderIndex, promoId);
-				break;
-			case AnnualReview:
-				employeeId = recordValues.get("employeeID");
-				Object reviewDate = recordValues.get("reviewDate"); // TODO Review DB definition of performance review
-				updateStmnt.setObject(lastPlaceHolderIndex-1, employeeId);
-				updateStmnt.setObject(lastPlaceHolderIndex, reviewDate);
-				break;
-			}
-			
+			PreparedStatement updateStmnt = conn.prepareStatement(plan.getUpdateSql());
+			plan.bindUpdate(updateStmnt, newRecord);
 			boolean qrySuccess = updateStmnt.execute();
-			conn.close();
+			if(affectsRole) {
+				refreshCurrentRoles(conn, newRecord.getRecordType(), Collections.singleton(newRecord));
+				conn.commit();
+			}
 			return qrySuccess;
+		} finally {
+			conn.close(); // Any unfinished transaction is rolled back as the connection returns to the pool
+			invalidateDepartments(Collections.singleton(newRecord));
 		}
-		conn.close();
-		return false;
 	}
 
 
@@ -557,10 +1109,10 @@ public class DatabaseHandler {
 	public LinkedHashMap<String, Object> queryToHashMap(ResultSet results) throws SQLException {
 		ResultSetMetaData metaData = results.getMetaData();
 		int columns = metaData.getColumnCount();
-		LinkedHashMap<String, Object> resultMap = new LinkedHashMap<>();
+		LinkedHashMap<String, Object> resultMap = new LinkedHashMap<>(columns * 2);
 
 		for (int i = 1; i <= columns; i++) {
-			resultMap.put(metaData.getColumnName(i) + "", results.getObject(i));
+			resultMap.put(metaData.getColumnName(i), results.getObject(i));
 		}
 
 		return resultMap;
@@ -576,12 +1128,16 @@ public class DatabaseHandler {
 	public ArrayList<LinkedHashMap<String, Object>> queryToList(ResultSet results) throws SQLException {
 		ResultSetMetaData metaData = results.getMetaData();
 		int columns = metaData.getColumnCount();
+		String[] columnNames = new String[columns]; // Same for every row, so only read once
+		for (int i = 1; i <= columns; i++) {
+			columnNames[i - 1] = metaData.getColumnName(i);
+		}
 		ArrayList<LinkedHashMap<String,Object>> list = new ArrayList<LinkedHashMap<String,Object>>();
 
 		while (results.next()) {
-			LinkedHashMap<String, Object> resultMap = new LinkedHashMap<String, Object>(columns);
+			LinkedHashMap<String, Object> resultMap = new LinkedHashMap<String, Object>(columns * 2);
 			for (int i = 1; i <= columns; i++) {
-				resultMap.put(metaData.getColumnName(i) + "", results.getObject(i));
+				resultMap.put(columnNames[i - 1], results.getObject(i));
 			}
 			list.add(resultMap);
 		}
@@ -599,13 +1155,12 @@ public class DatabaseHandler {
 	 */
 	public boolean checkPermissionByRole(Role authRole, String permission) throws SQLException {
 		Connection conn = connectToAuthDB();
-		String roleQuery = "SELECT * FROM PermissionsByRole WHERE permName = ? AND roleLevel = ?";
-		PreparedStatement rolePermStatement = conn.prepareStatement(roleQuery);
-		rolePermStatement.setString(1, permission);
-		rolePermStatement.setInt(2, authRole.id());
-		ResultSet rolePermResults = rolePermStatement.executeQuery();
-
 		try { // Used purely to 100% close out the connection on each code path
+			String roleQuery = "SELECT * FROM PermissionsByRole WHERE permName = ? AND roleLevel = ?";
+			PreparedStatement rolePermStatement = conn.prepareStatement(roleQuery);
+			rolePermStatement.setString(1, permission);
+			rolePermStatement.setInt(2, authRole.id());
+			ResultSet rolePermResults = rolePermStatement.executeQuery();
 			if(rolePermResults.next()) {
 				return true;
 			} else {
@@ -627,13 +1182,12 @@ public class DatabaseHandler {
 	 */
 	public boolean checkPermissionByDepartment(int departmentId, String permission) throws SQLException {
 		Connection conn = connectToAuthDB();
-		String deptQuery = "SELECT * FROM PermissionsByDepartment WHERE permName = ? AND departmentId = ?";
-		PreparedStatement deptPermStatement = conn.prepareStatement(deptQuery);
-		deptPermStatement.setString(1, permission);
-		deptPermStatement.setInt(2, departmentId);
-		ResultSet deptPermResults = deptPermStatement.executeQuery();
-
 		try { // Used purely to 100% close out the connection on each code path
+			String deptQuery = "SELECT * FROM PermissionsByDepartment WHERE permName = ? AND departmentId = ?";
+			PreparedStatement deptPermStatement = conn.prepareStatement(deptQuery);
+			deptPermStatement.setString(1, permission);
+			deptPermStatement.setInt(2, departmentId);
+			ResultSet deptPermResults = deptPermStatement.executeQuery();
 			if(deptPermResults.next()) {
 				return true;
 			} else {
@@ -654,13 +1208,12 @@ public class DatabaseHandler {
 	 */
 	public boolean checkPermissionByUser(String userId, String permission) throws SQLException {
 		Connection conn = connectToAuthDB();
-		String userQuery = "SELECT * FROM PermissionsByUser WHERE permName = ? AND userId = ?";
-		PreparedStatement userPermStatement = conn.prepareStatement(userQuery);
-		userPermStatement.setString(1, permission);
-		userPermStatement.setString(2, userId);
-		ResultSet userPermResults = userPermStatement.executeQuery();
-
 		try { // Used purely to 100% close out the connection on each code path
+			String userQuery = "SELECT * FROM PermissionsByUser WHERE permName = ? AND userId = ?";
+			PreparedStatement userPermStatement = conn.prepareStatement(userQuery);
+			userPermStatement.setString(1, permission);
+			userPermStatement.setString(2, userId);
+			ResultSet userPermResults = userPermStatement.executeQuery();
 			if(userPermResults.next()) {
 				return true;
 			} else {
@@ -670,4 +1223,460 @@ public class DatabaseHandler {
 			conn.close();
 		}
 	}
+
+	/**
+	 * Retrieves every permission granted by the PermissionsByRole,
+	 * PermissionsByDepartment and PermissionsByUser tables in one query,
+	 * so they can be loaded into memory as a consistent snapshot
+	 * @return ArrayList containing a row per grant, with the columns
+	 *         grantType ("role", "department" or "user"), grantee (the roleLevel,
+	 *         departmentId or userId) and permName
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public ArrayList<LinkedHashMap<String, Object>> getAllPermissionGrants() throws SQLException {
+		Connection conn = connectToAuthDB();
+		try {
+			String grantsQuery = "SELECT 'role' AS grantType, roleLevel AS grantee, permName FROM PermissionsByRole"
+					+ " UNION ALL SELECT 'department', departmentId, permName FROM PermissionsByDepartment"
+					+ " UNION ALL SELECT 'user', userId, permName FROM PermissionsByUser";
+			PreparedStatement grantsStatement = conn.prepareStatement(grantsQuery);
+			return queryToList(grantsStatement.executeQuery());
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Retrieves the current version of the permission tables. The version
+	 * goes up every time a row of PermissionsByRole, PermissionsByDepartment,
+	 * PermissionsByUser or PermissionsByRequest is inserted, updated or deleted, so comparing it
+	 * is a cheap way of finding out whether grants loaded earlier are stale.
+	 * @return The permission tables' version number
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public long getPermissionVersion() throws SQLException {
+		ensurePermissionVersioning();
+		Connection conn = connectToAuthDB();
+		try {
+			PreparedStatement versionStatement = conn.prepareStatement("SELECT version FROM PermissionVersion");
+			ResultSet versionResult = versionStatement.executeQuery();
+			return versionResult.next() ? versionResult.getLong("version") : 0;
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Checks whether any of the given permissions is granted to the user, by
+	 * their role, their department, to them individually or by an unexpired
+	 * request, all in one query. Runs on an HR connection, which has the Auth
+	 * DB attached, so the user's department can be found within the same query.
+	 * Wildcard grants such as "records.*.view.self" are matched too, giving the
+	 * same answer as the in-memory PermissionMatrix.
+	 * @param userId The user which should be checked for the permissions
+	 * @param staffNo The employeeId of the user, used to find their department
+	 * @param authRole The role level the user logged in with
+	 * @param permissions The permission strings, any of which would be enough
+	 * @return true if any of the permissions is granted, false otherwise
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public boolean checkPermissionAny(String userId, String staffNo, Role authRole, List<String> permissions) throws SQLException {
+		if(permissions.isEmpty()) {
+			return false;
+		}
+		ensurePermissionVersioning(); // Creates PermissionsByRequest if it's missing
+		permissions = withWildcards(permissions);
+
+		StringBuilder inList = new StringBuilder(" AND permName IN (");
+		for(int i=0; i < permissions.size(); i++) {
+			inList.append(i == 0 ? "?" : ", ?");
+		}
+		inList.append(")");
+
+		String anyQuery = "SELECT 1 FROM auth.PermissionsByRole WHERE roleLevel = ?" + inList
+				+ " UNION ALL SELECT 1 FROM auth.PermissionsByUser WHERE userId = ?" + inList
+				+ " UNION ALL SELECT 1 FROM auth.PermissionsByDepartment WHERE departmentId ="
+				+ " (SELECT departmentId FROM Employee WHERE employeeId = ?)" + inList
+				+ " UNION ALL SELECT 1 FROM auth.PermissionsByRequest WHERE userId = ? AND expiresAt > ?" + inList
+				+ " LIMIT 1";
+
+		Connection conn = connectToHRDB();
+		try {
+			PreparedStatement anyStatement = conn.prepareStatement(anyQuery);
+			int param = 1;
+			anyStatement.setInt(param++, authRole.id());
+			param = bindAll(anyStatement, param, permissions);
+			anyStatement.setString(param++, userId);
+			param = bindAll(anyStatement, param, permissions);
+			anyStatement.setString(param++, staffNo);
+			param = bindAll(anyStatement, param, permissions);
+			anyStatement.setString(param++, userId);
+			anyStatement.setLong(param++, System.currentTimeMillis());
+			bindAll(anyStatement, param, permissions);
+			ResultSet anyResult = anyStatement.executeQuery();
+			return anyResult.next();
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Adds every wildcard form of each permission, so that a grant such as
+	 * "records.*.view.*" is found by an IN list. A "*" stands for exactly one
+	 * segment, as in PermissionTrie, so a permission of n segments has 2^n
+	 * forms. Permissions are at most four segments, so that's 16 at most.
+	 * @param permissions The permission strings being looked for
+	 * @return The permissions followed by their wildcard forms, without duplicates
+	 */
+	private static List<String> withWildcards(List<String> permissions) {
+		LinkedHashSet<String> forms = new LinkedHashSet<>(permissions);
+		for(String permission : permissions) {
+			String[] segments = permission.split("\\.");
+			for(int mask = 1; mask < (1 << segments.length); mask++) {
+				StringBuilder form = new StringBuilder();
+				for(int i = 0; i < segments.length; i++) {
+					if(i > 0) {
+						form.append('.');
+					}
+					form.append((mask & (1 << i)) != 0 ? "*" : segments[i]);
+				}
+				forms.add(form.toString());
+			}
+		}
+		return new ArrayList<>(forms);
+	}
+
+	/**
+	 * Binds a list of strings to consecutive parameters of a statement
+	 * @param statement The statement to bind to
+	 * @param firstParam The index of the first parameter to bind
+	 * @param values The strings to bind
+	 * @return The index of the parameter after the last one bound
+	 * @throws SQLException When a parameter couldn't be bound
+	 */
+	private static int bindAll(PreparedStatement statement, int firstParam, List<String> values) throws SQLException {
+		int param = firstParam;
+		for(String value : values) {
+			statement.setString(param++, value);
+		}
+		return param;
+	}
+
+	/**
+	 * Checks if a user holds an unexpired request-based grant of a permission
+	 * @param userId The user which should be checked for the permission
+	 * @param permission The permission which should be looked for
+	 * @param now The current time, in milliseconds since the epoch
+	 * @return true if the permission is granted to the user and hasn't expired, false otherwise
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public boolean checkPermissionByRequest(String userId, String permission, long now) throws SQLException {
+		ensurePermissionVersioning();
+		Connection conn = connectToAuthDB();
+		try {
+			String requestQuery = "SELECT * FROM PermissionsByRequest WHERE permName = ? AND userId = ? AND expiresAt > ?";
+			PreparedStatement requestPermStatement = conn.prepareStatement(requestQuery);
+			requestPermStatement.setString(1, permission);
+			requestPermStatement.setString(2, userId);
+			requestPermStatement.setLong(3, now);
+			ResultSet requestPermResults = requestPermStatement.executeQuery();
+			return requestPermResults.next();
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Retrieves every request-based grant which hasn't expired yet
+	 * @param now The current time, in milliseconds since the epoch
+	 * @return ArrayList containing a row per grant, with the columns requestId,
+	 *         userId, permName, grantedBy and expiresAt
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public ArrayList<LinkedHashMap<String, Object>> getActivePermissionsByRequest(long now) throws SQLException {
+		ensurePermissionVersioning();
+		Connection conn = connectToAuthDB();
+		try {
+			PreparedStatement requestStatement = conn.prepareStatement("SELECT requestId, userId, permName, grantedBy, expiresAt"
+					+ " FROM PermissionsByRequest WHERE expiresAt > ?");
+			requestStatement.setLong(1, now);
+			return queryToList(requestStatement.executeQuery());
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Grants a permission to a user until the given time, for example when a
+	 * manager has asked to see one employee's records for a couple of days
+	 * @param userId The user being granted the permission
+	 * @param permission The permission being granted
+	 * @param grantedBy The user who granted it
+	 * @param expiresAt When the grant expires, in milliseconds since the epoch
+	 * @return The requestId of the new grant
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public int addPermissionByRequest(String userId, String permission, String grantedBy, long expiresAt) throws SQLException {
+		ensurePermissionVersioning();
+		Connection conn = connectToAuthDBForWrite();
+		try {
+			PreparedStatement insertStatement = conn.prepareStatement("INSERT INTO PermissionsByRequest"
+					+ " (userId, permName, grantedBy, expiresAt) VALUES (?, ?, ?, ?)");
+			insertStatement.setString(1, userId);
+			insertStatement.setString(2, permission);
+			insertStatement.setString(3, grantedBy);
+			insertStatement.setLong(4, expiresAt);
+			insertStatement.executeUpdate();
+			ResultSet idResult = conn.createStatement().executeQuery("SELECT last_insert_rowid()");
+			idResult.next();
+			return idResult.getInt(1);
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Removes a request-based grant before it expires
+	 * @param requestId The grant to remove
+	 * @return true if the grant was found and removed, false otherwise
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public boolean revokePermissionByRequest(int requestId) throws SQLException {
+		ensurePermissionVersioning();
+		Connection conn = connectToAuthDBForWrite();
+		try {
+			PreparedStatement deleteStatement = conn.prepareStatement("DELETE FROM PermissionsByRequest WHERE requestId = ?");
+			deleteStatement.setInt(1, requestId);
+			return deleteStatement.executeUpdate() > 0;
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Deletes every request-based grant which has expired. This doesn't move
+	 * the permission version, as an expired grant already allows nothing.
+	 * @param now The current time, in milliseconds since the epoch
+	 * @return The number of grants deleted
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public int deleteExpiredPermissionsByRequest(long now) throws SQLException {
+		ensurePermissionVersioning();
+		Connection conn = connectToAuthDBForWrite();
+		try {
+			PreparedStatement deleteStatement = conn.prepareStatement("DELETE FROM PermissionsByRequest WHERE expiresAt <= ?");
+			deleteStatement.setLong(1, now);
+			return deleteStatement.executeUpdate();
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Creates the PermissionVersion table and the triggers which keep it up to
+	 * date the first time they are needed, along with the PermissionsByRequest
+	 * table whose changes are versioned too
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	private static void ensurePermissionVersioning() throws SQLException {
+		if(permissionVersioningReady) {
+			return;
+		}
+		synchronized(DatabaseHandler.class) {
+			if(permissionVersioningReady) {
+				return;
+			}
+			Connection conn = authPool.leaseWrite();
+			try {
+				conn.setAutoCommit(false);
+				Statement versionStatement = conn.createStatement();
+				versionStatement.executeUpdate("CREATE TABLE IF NOT EXISTS PermissionsByRequest ("
+						+ "requestId INTEGER PRIMARY KEY AUTOINCREMENT, userId TEXT NOT NULL, permName TEXT NOT NULL,"
+						+ " grantedBy TEXT, expiresAt INTEGER NOT NULL)");
+				versionStatement.executeUpdate("CREATE INDEX IF NOT EXISTS PermissionsByRequest_expiresAt"
+						+ " ON PermissionsByRequest (expiresAt)");
+				versionStatement.executeUpdate("CREATE TABLE IF NOT EXISTS PermissionVersion (version INTEGER NOT NULL)");
+				versionStatement.executeUpdate("INSERT INTO PermissionVersion (version)"
+						+ " SELECT 0 WHERE NOT EXISTS (SELECT * FROM PermissionVersion)");
+				String[] permissionTables = { "PermissionsByRole", "PermissionsByDepartment", "PermissionsByUser", "PermissionsByRequest" };
+				String[] events = { "INSERT", "UPDATE", "DELETE" };
+				for(String table : permissionTables) {
+					for(String event : events) {
+						// Deleting an expired grant changes nothing, so only revoking an unexpired one counts
+						String when = table.equals("PermissionsByRequest") && event.equals("DELETE")
+								? " WHEN OLD.expiresAt > CAST(strftime('%s', 'now') AS INTEGER) * 1000" : "";
+						String trigger = table + "_" + event.toLowerCase() + "_version";
+						if(!when.isEmpty()) {
+							// Replaces the trigger from before it was conditional, which bumped the version on every expiry
+							trigger = table + "_revoke_version";
+							versionStatement.executeUpdate("DROP TRIGGER IF EXISTS " + table + "_delete_version");
+						}
+						versionStatement.executeUpdate("CREATE TRIGGER IF NOT EXISTS " + trigger
+								+ " AFTER " + event + " ON " + table + when
+								+ " BEGIN UPDATE PermissionVersion SET version = version + 1; END");
+					}
+				}
+				conn.commit();
+				permissionVersioningReady = true;
+			} finally {
+				conn.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads one page of a record type's encrypted columns, ordered by rowid,
+	 * for re-encrypting them. Pages are found by rowid rather than OFFSET, so
+	 * every page is as quick to find as the first.
+	 * @param recordType The type of record whose table to read
+	 * @param columns The encrypted columns to read
+	 * @param keyColumns The columns of the record key the values are bound to
+	 * @param afterRowid Only rows with a greater rowid are read, 0 to start from the first
+	 * @param limit The most rows to read
+	 * @return List of rows, each holding the rowid (a Long), the columns' stored values then the key columns' values
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public ArrayList<Object[]> getEncryptedPage(RecordType recordType, String[] columns, String[] keyColumns, long afterRowid, int limit)
+			throws SQLException {
+		String pageQuery = "SELECT rowid, " + String.join(", ", columns) + ", " + String.join(", ", keyColumns)
+				+ " FROM " + recordType.name() // Enum names match the DB table names
+				+ " WHERE rowid > ? ORDER BY rowid LIMIT ?";
+		ArrayList<Object[]> page = new ArrayList<>();
+		Connection conn = connectToHRDB();
+		try {
+			PreparedStatement pageStatement = conn.prepareStatement(pageQuery);
+			pageStatement.setLong(1, afterRowid);
+			pageStatement.setInt(2, limit);
+			ResultSet results = pageStatement.executeQuery();
+			while(results.next()) {
+				Object[] row = new Object[columns.length + keyColumns.length + 1];
+				row[0] = results.getLong(1);
+				for(int i=0; i < columns.length; i++) {
+					row[i + 1] = results.getString(i + 2);
+				}
+				for(int i=0; i < keyColumns.length; i++) {
+					row[columns.length + i + 1] = results.getObject(columns.length + i + 2);
+				}
+				page.add(row);
+			}
+			results.close();
+		} finally {
+			conn.close();
+		}
+		return page;
+	}
+
+	/**
+	 * Writes one chunk of re-encrypted values back, along with how far
+	 * through the table the rotation has got, in a single transaction.
+	 * A value is only replaced if it still holds what was read, so anything
+	 * saved by a user in the meantime (already under the new key) is kept.
+	 * @param recordType The type of record whose table to write
+	 * @param columns The encrypted columns, in the same order as the rows
+	 * @param read The rows as read by getEncryptedPage()
+	 * @param rewritten The new values for each row, in the same layout, null where a value is unchanged
+	 * @param keyId The ID of the key the values are being re-encrypted with
+	 * @param lastRowid The rowid of the last row in the chunk
+	 * @param done true if this is the last chunk of the table
+	 * @return The number of values replaced
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public int writeReencryptedChunk(RecordType recordType, String[] columns, List<Object[]> read, List<Object[]> rewritten,
+			String keyId, long lastRowid, boolean done) throws SQLException {
+		ensureRotationCheckpoints();
+		int replaced = 0;
+		Connection conn = connectToHRDBForWrite();
+		try {
+			conn.setAutoCommit(false);
+			for(int i=0; i < columns.length; i++) {
+				PreparedStatement updateStatement = null;
+				for(int r=0; r < read.size(); r++) {
+					Object newValue = rewritten.get(r)[i + 1];
+					if(newValue == null) {
+						continue;
+					}
+					if(updateStatement == null) {
+						updateStatement = conn.prepareStatement("UPDATE " + recordType.name() + " SET " + columns[i] + " = ?"
+								+ " WHERE rowid = ? AND " + columns[i] + " = ?");
+					}
+					updateStatement.setObject(1, newValue);
+					updateStatement.setLong(2, (Long) read.get(r)[0]);
+					updateStatement.setObject(3, read.get(r)[i + 1]);
+					updateStatement.addBatch();
+				}
+				if(updateStatement != null) {
+					for(int count : updateStatement.executeBatch()) {
+						if(count > 0) {
+							replaced += count;
+						}
+					}
+				}
+			}
+			PreparedStatement checkpointStatement = conn.prepareStatement("INSERT OR REPLACE INTO KeyRotationCheckpoint"
+					+ " (tableName, keyId, lastRowid, done) VALUES (?, ?, ?, ?)");
+			checkpointStatement.setString(1, recordType.name());
+			checkpointStatement.setString(2, keyId);
+			checkpointStatement.setLong(3, lastRowid);
+			checkpointStatement.setInt(4, done ? 1 : 0);
+			checkpointStatement.execute();
+			conn.commit();
+		} finally {
+			conn.close(); // Any unfinished transaction is rolled back as the connection returns to the pool
+		}
+		return replaced;
+	}
+
+	/**
+	 * Finds where a key rotation should carry on from in a table
+	 * @param recordType The type of record whose table is being rotated
+	 * @param keyId The ID of the key values are being re-encrypted with
+	 * @return The last rowid already rotated (0 to start from the beginning), -1 if the table is finished
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public long getRotationCheckpoint(RecordType recordType, String keyId) throws SQLException {
+		ensureRotationCheckpoints();
+		Connection conn = connectToHRDB();
+		try {
+			PreparedStatement checkpointStatement = conn.prepareStatement("SELECT lastRowid, done FROM KeyRotationCheckpoint"
+					+ " WHERE tableName = ? AND keyId = ?");
+			checkpointStatement.setString(1, recordType.name());
+			checkpointStatement.setString(2, keyId);
+			ResultSet results = checkpointStatement.executeQuery();
+			try {
+				if(!results.next()) {
+					return 0; // Never started, or last rotated to a different key
+				}
+				return results.getInt("done") == 1 ? -1 : results.getLong("lastRowid");
+			} finally {
+				results.close();
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Creates the KeyRotationCheckpoint table the first time it is needed
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	private static void ensureRotationCheckpoints() throws SQLException {
+		if(rotationCheckpointsReady) {
+			return;
+		}
+		synchronized(DatabaseHandler.class) {
+			if(rotationCheckpointsReady) {
+				return;
+			}
+			Connection conn = hrPool.leaseWrite();
+			try {
+				Statement createStatement = conn.createStatement();
+				createStatement.executeUpdate("CREATE TABLE IF NOT EXISTS KeyRotationCheckpoint ("
+						+ "tableName TEXT PRIMARY KEY, keyId TEXT NOT NULL,"
+						+ " lastRowid INTEGER NOT NULL, done INTEGER NOT NULL DEFAULT 0)");
+				rotationCheckpointsReady = true;
+			} finally {
+				conn.close();
+			}
+		}
+	}
 }
@@ -0,0 +1,197 @@
+package yuconz23d;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, in-memory cache of which department each employee belongs to,
+ * holding both the department's ID and name. Every permission check needs
+ * the department of the user attempting the action, and employees rarely
+ * move departments, so this saves a JOIN query on almost every check.
+ *
+ * The cache is normally preloaded with every employee in one query. For
+ * organisations with more employees than the cache holds, the least
+ * recently used entries are evicted and reloaded on demand. Entries must
+ * be invalidated whenever an Employee record is written, DatabaseHandler
+ * does this for every Employee record created or updated through it.
+ *
+ * All methods are synchronized, the cache is shared by every DatabaseHandler.
+ */
+public class DepartmentCache {
+	private int maxEntries;
+	private LinkedHashMap<String, Department> entries;
+	private long generation;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Constructs an empty cache
+	 * @param maxEntries The maximum number of employees to hold
+	 */
+	public DepartmentCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+		// Access ordered, so the eldest entry is always the least recently looked up
+		this.entries = new LinkedHashMap<String, Department>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Department> eldest) {
+				if(size() > DepartmentCache.this.maxEntries) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Looks up an employee's department
+	 * @param employeeId The employee to look up
+	 * @return The employee's Department (Department.UNKNOWN when they have none), null when not cached
+	 */
+	public synchronized Department get(String employeeId) {
+		Department department = entries.get(employeeId);
+		if(department == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return department;
+	}
+
+	/**
+	 * Retrieves the cache's generation, which changes whenever an entry is
+	 * invalidated. Read it before loading a department from the database and
+	 * pass it to put(), so a department read before an invalidation is dropped.
+	 * @return The current generation
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Stores an employee's department, unless anything was invalidated since it was loaded
+	 * @param employeeId The employee
+	 * @param department Their Department, Department.UNKNOWN when they have none
+	 * @param loadedGeneration The result of getGeneration() from before the department was loaded
+	 */
+	public synchronized void put(String employeeId, Department department, long loadedGeneration) {
+		if(loadedGeneration != generation) {
+			return;
+		}
+		entries.put(employeeId, department);
+	}
+
+	/**
+	 * Stores many employees' departments at once, unless anything was invalidated since they were loaded
+	 * @param departments Map of employeeId to Department
+	 * @param loadedGeneration The result of getGeneration() from before the departments were loaded
+	 * @return true if the departments were stored
+	 */
+	public synchronized boolean putAll(Map<String, Department> departments, long loadedGeneration) {
+		if(loadedGeneration != generation) {
+			return false;
+		}
+		entries.putAll(departments);
+		return true;
+	}
+
+	/**
+	 * Forgets one employee's department
+	 * @param employeeId The employee whose department may have changed
+	 */
+	public synchronized void invalidate(String employeeId) {
+		generation++;
+		entries.remove(employeeId);
+	}
+
+	/**
+	 * Forgets every employee's department
+	 */
+	public synchronized void clear() {
+		generation++;
+		entries.clear();
+	}
+
+	/**
+	 * @return The maximum number of employees the cache holds
+	 */
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * @return The number of employees currently cached
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return The number of lookups answered from the cache
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return The number of lookups which had to go to the database
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return The number of employees thrown out to make room for others
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Returns the cache's statistics as a one-line summary
+	 */
+	public synchronized String toString() {
+		return "DepartmentCache[size=" + entries.size() + "/" + maxEntries
+				+ " hits=" + hits
+				+ " misses=" + misses
+				+ " evictions=" + evictions + "]";
+	}
+
+	/**
+	 * The department an employee belongs to
+	 */
+	public static class Department {
+		/** Stands in for employees who couldn't be found, so those lookups are cached too */
+		public static final Department UNKNOWN = new Department(0, null);
+
+		private int id;
+		private String name;
+
+		/**
+		 * @param id The department's ID
+		 * @param name The department's name
+		 */
+		public Department(int id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+
+		/**
+		 * @return The department's ID, 0 if unknown
+		 */
+		public int getId() {
+			return id;
+		}
+
+		/**
+		 * @return The department's name, null if unknown
+		 */
+		public String getName() {
+			return name;
+		}
+	}
+}
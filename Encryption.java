@@ -1,107 +1,388 @@
 package yuconz23d;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
 import javax.crypto.Cipher;
-import java.security.MessageDigest;
-import java.math.BigInteger;
-//import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
- * Used for encrypting and decrypting passwords with AES
- * The key will be generated from their personal details
- * To avoid a key being stored and hardcoded
+ * Encrypts and decrypts the values of sensitive text columns (those whose
+ * Column is marked as encrypted, e.g. CVs and phone numbers) with AES-GCM,
+ * so they are unreadable in the HR DB itself and any tampering with them
+ * is detected. Encrypted values are stored as text, so numeric columns
+ * such as salaries aren't encrypted, as they'd no longer sort or compare
+ * as numbers.
+ *
+ * Encrypted values are stored as "enc:v2:&lt;keyId&gt;:&lt;Base64&gt;", where the
+ * Base64 holds a random IV followed by the ciphertext and its tag. Each
+ * value is bound to where it's stored by a context (see
+ * WritePlan.encryptionContext()), given to GCM as additional authenticated
+ * data, so a value copied into another column or record fails to decrypt
+ * rather than being read as if it belonged there.
+ *
+ * The key ID lets keys be rotated: new values are always encrypted with the
+ * current key, whilst values encrypted with any older key in the ring can
+ * still be read until they're re-encrypted. Values stored as "enc:v1:" were
+ * encrypted without a context, they can still be read and are re-encrypted
+ * as v2 by the next key rotation. Values without a prefix were stored before
+ * their column was encrypted, so are returned as they are.
+ *
+ * Each thread keeps its own Cipher, so any number of threads can encrypt
+ * and decrypt at once without sharing (or locking) one.
+ *
+ * The shared engine's keys live in YuconzKeys.properties in the working
+ * directory, beside the databases, unless the yuconz.keyFile system
+ * property names another path. The file is created with a new key the
+ * first time it's needed and is only readable and writable by its owner
+ * (rw-------) where the file system supports POSIX permissions. It holds
+ * every key in plain Base64, so it must never be committed or shipped with
+ * the databases, and it must be backed up separately: without it the
+ * encrypted columns can't be read.
  * @author Tom
  *
  */
-
 public class Encryption {
+	private static final String PREFIX = "enc:v2:";
+	// Written before values were bound to a context, only ever read. The same length as PREFIX.
+	private static final String UNBOUND_PREFIX = "enc:v1:";
+	private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+	private static final int KEY_BYTES = 32;
+	private static final int IV_BYTES = 12;
+	private static final int TAG_BYTES = 16;
+	private static final String KEY_FILE = "YuconzKeys.properties";
+	private static final String KEY_FILE_PROPERTY = "yuconz.keyFile";
+	private static final String CURRENT_PROPERTY = "current";
 
-	Cipher ecipher;
-	Cipher dcipher;
-	SecretKey key;
-	String basekey;
+	// Cipher.getInstance() is slow and Ciphers aren't thread-safe, so each thread gets one of its own
+	private static final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+		try {
+			return Cipher.getInstance(TRANSFORMATION);
+		} catch(GeneralSecurityException e) {
+			throw new IllegalStateException(TRANSFORMATION + " isn't available", e);
+		}
+	});
 
-	public Encryption() throws Exception {
+	private static volatile Encryption shared;
 
-		ecipher = Cipher.getInstance("AES");
-		dcipher = Cipher.getInstance("AES");
+	private Path keyFile;
+	private volatile Map<String, SecretKey> keys;
+	private volatile String currentKeyId;
+	private SecureRandom random = new SecureRandom();
+
+	/**
+	 * Constructs an engine holding the given keys, which aren't saved anywhere
+	 * @param keys Map of key ID to raw AES key (16, 24 or 32 bytes)
+	 * @param currentKeyId The ID of the key new values are encrypted with
+	 */
+	public Encryption(Map<String, byte[]> keys, String currentKeyId) {
+		LinkedHashMap<String, SecretKey> ring = new LinkedHashMap<>();
+		for(Map.Entry<String, byte[]> key : keys.entrySet()) {
+			ring.put(checkKeyId(key.getKey()), new SecretKeySpec(key.getValue(), "AES"));
+		}
+		if(!ring.containsKey(currentKeyId)) {
+			throw new IllegalArgumentException("No key with ID " + currentKeyId);
+		}
+		this.keys = Collections.unmodifiableMap(ring);
+		this.currentKeyId = currentKeyId;
 	}
 
 	/**
-	 * Creates a SecretKey to be used in encrypting and decrypting
-	 * based off a provided String
-	 * @param basekey the String to be used to generate the SecretKey
-	 * @return the generated SecretKey 
+	 * Loads an engine's keys from a file, creating the file with a new key if it doesn't exist
+	 * @param keyFile The properties file holding the keys
+	 * @return The Encryption engine, which saves any keys added to it back to the file
+	 * @throws IOException When the file couldn't be read or created
 	 */
-	public SecretKey generateSecret(String basekey) {
+	public static Encryption load(Path keyFile) throws IOException {
+		Properties properties = new Properties();
+		if(Files.exists(keyFile)) {
+			try(InputStream in = Files.newInputStream(keyFile)) {
+				properties.load(in);
+			}
+		}
+		LinkedHashMap<String, byte[]> keys = new LinkedHashMap<>();
+		for(String name : properties.stringPropertyNames()) {
+			if(!name.equals(CURRENT_PROPERTY)) {
+				keys.put(name, Base64.getDecoder().decode(properties.getProperty(name)));
+			}
+		}
+		String current = properties.getProperty(CURRENT_PROPERTY);
+		Encryption engine;
+		if(keys.isEmpty()) {
+			current = "k1";
+			keys.put(current, newKey());
+			engine = new Encryption(keys, current);
+			engine.keyFile = keyFile;
+			engine.save(engine.keys, current);
+		} else {
+			engine = new Encryption(keys, current);
+			engine.keyFile = keyFile;
+		}
+		return engine;
+	}
 
-		SecretKey key = new SecretKeySpec(basekey.getBytes(), "AES");
-		return key;
+	/**
+	 * Retrieves the engine shared by the whole system, loading its keys the
+	 * first time from the file named by the yuconz.keyFile system property,
+	 * or YuconzKeys.properties in the working directory if it isn't set
+	 * @return The shared Encryption engine
+	 * @throws IllegalStateException When the keys couldn't be loaded
+	 */
+	public static Encryption getShared() {
+		if(shared == null) {
+			synchronized(Encryption.class) {
+				if(shared == null) {
+					Path keyFile = Paths.get(System.getProperty(KEY_FILE_PROPERTY, KEY_FILE));
+					try {
+						shared = load(keyFile);
+					} catch(IOException | IllegalArgumentException e) {
+						throw new IllegalStateException("Unable to load encryption keys from " + keyFile.toAbsolutePath(), e);
+					}
+				}
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * Adds a newly generated key to the ring and makes it the current key,
+	 * saving the ring first when it was loaded from a file. Values encrypted
+	 * with older keys can still be read.
+	 * @return The new key's ID
+	 * @throws IOException When the key file couldn't be written
+	 */
+	public synchronized String addKey() throws IOException {
+		int highest = 0;
+		for(String keyId : keys.keySet()) {
+			if(keyId.matches("k[0-9]+")) {
+				highest = Math.max(highest, Integer.parseInt(keyId.substring(1)));
+			}
+		}
+		String keyId = "k" + (highest + 1);
+		LinkedHashMap<String, SecretKey> ring = new LinkedHashMap<>(keys);
+		ring.put(keyId, new SecretKeySpec(newKey(), "AES"));
+		save(ring, keyId);
+		// The key goes into the ring before it becomes current, so it can always be found
+		keys = Collections.unmodifiableMap(ring);
+		currentKeyId = keyId;
+		return keyId;
 	}
 
 	/**
-	 * Encrypts a String using AES and then returns it
-	 * @param str the String to be encrypted
-	 * @param key the SecretKey to be used for encryption
-	 * @return the encrypted String
-	 * @throws Exception
+	 * @return The ID of the key new values are encrypted with
 	 */
-	public String encrypt(String str, SecretKey key) throws Exception {
-		
-		
-		ecipher.init(Cipher.ENCRYPT_MODE, key);
-		
-		// Encode the string
-		byte[] utf8 = str.getBytes("UTF8");
+	public String getCurrentKeyId() {
+		return currentKeyId;
+	}
 
-		// Encrypt
-		byte[] enc = ecipher.doFinal(utf8);
+	/**
+	 * @return The IDs of every key in the ring
+	 */
+	public Set<String> getKeyIds() {
+		return keys.keySet();
+	}
+
+	/**
+	 * Works out how much room encrypting some bytes needs
+	 * @param plainBytes The number of bytes to be encrypted
+	 * @return The number of bytes encrypt() will write
+	 */
+	public int encryptedSize(int plainBytes) {
+		return IV_BYTES + plainBytes + TAG_BYTES;
+	}
 
-		// Encode
-		String encrypted = new sun.misc.BASE64Encoder().encode(enc);
+	/**
+	 * Encrypts the remaining bytes of a buffer, writing the IV followed by
+	 * the ciphertext and tag to another
+	 * @param keyId The ID of the key to encrypt with, normally getCurrentKeyId()
+	 * @param context Authenticated along with the bytes but not stored, the same must be given to decrypt, may be null
+	 * @param plain The bytes to encrypt, from its position to its limit
+	 * @param out Where to write, with at least encryptedSize() bytes remaining
+	 * @return The number of bytes written
+	 * @throws IllegalStateException When the key is unknown or encryption fails
+	 */
+	public int encrypt(String keyId, byte[] context, ByteBuffer plain, ByteBuffer out) {
+		SecretKey key = keys.get(keyId);
+		if(key == null) {
+			throw new IllegalStateException("No encryption key with ID " + keyId);
+		}
+		byte[] iv = new byte[IV_BYTES];
+		random.nextBytes(iv);
+		Cipher cipher = ciphers.get();
+		try {
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BYTES * 8, iv));
+			if(context != null) {
+				cipher.updateAAD(context);
+			}
+			out.put(iv);
+			return IV_BYTES + cipher.doFinal(plain, out);
+		} catch(GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to encrypt value", e);
+		}
+	}
 
-		System.out.println(encrypted);
-		System.out.println(key);
-		return encrypted;
+	/**
+	 * Decrypts bytes written by encrypt(), checking they haven't been tampered with
+	 * @param keyId The ID of the key they were encrypted with
+	 * @param context The context they were encrypted with, may be null
+	 * @param in The IV, ciphertext and tag, from its position to its limit
+	 * @param out Where to write, with at least as many bytes remaining as in has
+	 * @return The number of bytes written
+	 * @throws IllegalStateException When the key is unknown, the bytes have been altered or the context differs
+	 */
+	public int decrypt(String keyId, byte[] context, ByteBuffer in, ByteBuffer out) {
+		SecretKey key = keys.get(keyId);
+		if(key == null) {
+			throw new IllegalStateException("No encryption key with ID " + keyId);
+		}
+		if(in.remaining() < IV_BYTES + TAG_BYTES) {
+			throw new IllegalStateException("Encrypted value is too short");
+		}
+		byte[] iv = new byte[IV_BYTES];
+		in.get(iv);
+		Cipher cipher = ciphers.get();
+		try {
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BYTES * 8, iv));
+			if(context != null) {
+				cipher.updateAAD(context);
+			}
+			return cipher.doFinal(in, out);
+		} catch(GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to decrypt value encrypted with key " + keyId, e);
+		}
+	}
 
+	/**
+	 * Encrypts a value with the current key, bound to where it's being stored
+	 * @param value The value to encrypt
+	 * @param context Where the value is stored, as given by WritePlan.encryptionContext()
+	 * @return The value in its stored form, "enc:v2:&lt;keyId&gt;:&lt;Base64&gt;", null if value was null
+	 * @throws IllegalStateException When encryption fails
+	 */
+	public String encrypt(String value, String context) {
+		if(value == null) {
+			return null;
+		}
+		String keyId = currentKeyId;
+		byte[] plain = value.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer out = ByteBuffer.allocate(encryptedSize(plain.length));
+		int length = encrypt(keyId, context.getBytes(StandardCharsets.UTF_8), ByteBuffer.wrap(plain), out);
+		return PREFIX + keyId + ":" + Base64.getEncoder().encodeToString(Arrays.copyOf(out.array(), length));
 	}
-	
+
 	/**
-	 * Decrypts a String using AES and then returns it
-	 * @param str the String to be decrypted
-	 * @param key the SecretKey to be used for decryption
-	 * @return the decrypted String
-	 * @throws Exception
+	 * Decrypts a stored value. Values which were never encrypted are returned as they are.
+	 * @param stored The value as stored in the database
+	 * @param context Where the value was read from, as given by WritePlan.encryptionContext()
+	 * @return The decrypted value, null if stored was null
+	 * @throws IllegalStateException When the key is unknown, or the value has been altered or moved from elsewhere
 	 */
-	public String decrypt(String str, SecretKey key) throws Exception {
-		
-		dcipher.init(Cipher.DECRYPT_MODE, key);
-		// Decode
-		byte[] dec = new sun.misc.BASE64Decoder().decodeBuffer(str);
+	public String decrypt(String stored, String context) {
+		if(!isEncrypted(stored)) {
+			return stored;
+		}
+		// v1 values were encrypted without a context, so have nothing to check it against
+		boolean bound = stored.startsWith(PREFIX);
+		int keyEnd = stored.indexOf(':', PREFIX.length());
+		if(keyEnd < 0) {
+			throw new IllegalStateException("Malformed encrypted value");
+		}
+		byte[] encrypted;
+		try {
+			encrypted = Base64.getDecoder().decode(stored.substring(keyEnd + 1));
+		} catch(IllegalArgumentException e) {
+			throw new IllegalStateException("Malformed encrypted value", e);
+		}
+		ByteBuffer out = ByteBuffer.allocate(encrypted.length);
+		int length = decrypt(stored.substring(PREFIX.length(), keyEnd),
+				bound ? context.getBytes(StandardCharsets.UTF_8) : null, ByteBuffer.wrap(encrypted), out);
+		return new String(out.array(), 0, length, StandardCharsets.UTF_8);
+	}
 
-		// Decrypt
-		byte[] utf8 = dcipher.doFinal(dec);
+	/**
+	 * Checks whether a stored value should be (re-)encrypted with the current
+	 * key, because it's plain text, was encrypted with an older key or wasn't
+	 * bound to a context
+	 * @param stored The value as stored in the database
+	 * @return true if it should be re-encrypted, false if it's null or already uses the current key
+	 */
+	public boolean needsReencryption(String stored) {
+		return stored != null && (!stored.startsWith(PREFIX) || !currentKeyId.equals(keyIdOf(stored)));
+	}
 
-		// Decode using utf-8
-		return new String(utf8, "UTF8");
+	/**
+	 * @param value A value as stored in the database
+	 * @return true if the value was encrypted by this class
+	 */
+	public static boolean isEncrypted(String value) {
+		return value != null && (value.startsWith(PREFIX) || value.startsWith(UNBOUND_PREFIX));
 	}
 
 	/**
-	 * Generates a 16 character long String from a variable length String 
-	 * This will be used to generate a unique key for each user for encrypting and
-	 * de-crypting their password
-	 * @param text the text to be hashed to 16 characters
-	 * @return the text hashed into 16 characters
+	 * @param value A value as stored in the database
+	 * @return The ID of the key the value was encrypted with, null if it isn't encrypted
 	 */
-	public String hashString(String text) throws Exception {
+	public static String keyIdOf(String value) {
+		if(!isEncrypted(value)) {
+			return null;
+		}
+		int keyEnd = value.indexOf(':', PREFIX.length());
+		return keyEnd < 0 ? null : value.substring(PREFIX.length(), keyEnd);
+	}
 
-		MessageDigest msg = MessageDigest.getInstance("MD5");
-		msg.update(text.getBytes(), 0, text.length());
-		String digest1 = new BigInteger(1, msg.digest()).toString(16);
-		digest1 = digest1.substring(0, 16);
-		return digest1;
+	/**
+	 * Writes the key ring to its file, readable only by its owner where the filesystem allows
+	 */
+	private void save(Map<String, SecretKey> ring, String current) throws IOException {
+		if(keyFile == null) {
+			return;
+		}
+		Properties properties = new Properties();
+		for(Map.Entry<String, SecretKey> key : ring.entrySet()) {
+			properties.setProperty(key.getKey(), Base64.getEncoder().encodeToString(key.getValue().getEncoded()));
+		}
+		properties.setProperty(CURRENT_PROPERTY, current);
+		Path temp = keyFile.resolveSibling(keyFile.getFileName() + ".tmp");
+		try(OutputStream out = Files.newOutputStream(temp)) {
+			properties.store(out, "Yuconz column encryption keys, do not share or delete");
+		}
+		try {
+			Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+		} catch(UnsupportedOperationException e) {
+			// Not a POSIX filesystem, the file keeps its default permissions
+		}
+		Files.move(temp, keyFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
 
+	private static byte[] newKey() {
+		byte[] key = new byte[KEY_BYTES];
+		new SecureRandom().nextBytes(key);
+		return key;
 	}
 
+	private static String checkKeyId(String keyId) {
+		if(keyId == null || !keyId.matches("[A-Za-z0-9_-]+") || keyId.equals(CURRENT_PROPERTY)) {
+			throw new IllegalArgumentException("Invalid key ID: " + keyId);
+		}
+		return keyId;
+	}
 }
@@ -0,0 +1,134 @@
+package yuconz23d;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel, used to find out which items have expired
+ * without scanning through every item that hasn't.
+ *
+ * Time is counted in ticks. The wheel has several levels of 64 slots each:
+ * a slot of the first level covers one tick, a slot of the second covers
+ * 64 ticks, a slot of the third 4096 ticks and so on. An item is put in the
+ * slot of the lowest level that can hold its deadline. Each time a higher
+ * level slot comes round its items are moved down to lower levels, until
+ * they reach the first level and expire on the tick they are due.
+ * Scheduling an item and expiring it are both constant time.
+ *
+ * Items can't be removed once scheduled, callers should ignore expired
+ * items that no longer matter to them. All methods are synchronized.
+ *
+ * @param <T> The type of item being scheduled
+ */
+public class ExpiryWheel<T> {
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	private static final int LEVELS = 5;
+
+	private long tickMillis;
+	private long currentTick;
+	private List<List<Entry<T>>> slots;
+	private int size;
+
+	/**
+	 * Constructs an empty wheel
+	 * @param tickMillis How many milliseconds each tick lasts, items expire at most this late
+	 * @param now The current time, in milliseconds since the epoch
+	 */
+	public ExpiryWheel(long tickMillis, long now) {
+		this.tickMillis = tickMillis;
+		this.currentTick = now / tickMillis;
+		this.slots = new ArrayList<>(LEVELS * SLOTS);
+		for(int i=0; i < LEVELS * SLOTS; i++) {
+			slots.add(new ArrayList<>());
+		}
+	}
+
+	/**
+	 * Schedules an item to expire
+	 * @param item The item
+	 * @param deadline When the item expires, in milliseconds since the epoch
+	 */
+	public synchronized void schedule(T item, long deadline) {
+		// Rounded up, so an item never expires before its deadline
+		long deadlineTick = (deadline + tickMillis - 1) / tickMillis;
+		place(new Entry<>(item, Math.max(deadlineTick, currentTick + 1)));
+		size++;
+	}
+
+	/**
+	 * Moves the wheel on to the given time
+	 * @param now The current time, in milliseconds since the epoch
+	 * @return Every item whose deadline has passed since the wheel was last advanced
+	 */
+	public synchronized List<T> advance(long now) {
+		ArrayList<T> expired = new ArrayList<>();
+		long targetTick = now / tickMillis;
+		while(currentTick < targetTick) {
+			currentTick++;
+			cascade();
+			List<Entry<T>> due = slots.get((int) (currentTick & SLOT_MASK));
+			for(Entry<T> entry : due) {
+				expired.add(entry.item);
+			}
+			size -= due.size();
+			due.clear();
+		}
+		return expired;
+	}
+
+	/**
+	 * @return The number of items which haven't expired yet
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Moves the items of every higher level slot which has just come round
+	 * down to the lower levels, highest level first
+	 */
+	private void cascade() {
+		for(int level = LEVELS - 1; level > 0; level--) {
+			if((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+				continue;
+			}
+			List<Entry<T>> slot = slots.get(level * SLOTS + (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK));
+			if(slot.isEmpty()) {
+				continue;
+			}
+			ArrayList<Entry<T>> moving = new ArrayList<>(slot);
+			slot.clear();
+			for(Entry<T> entry : moving) {
+				place(entry);
+			}
+		}
+	}
+
+	/**
+	 * Puts an entry in the slot of the lowest level which can hold its deadline
+	 */
+	private void place(Entry<T> entry) {
+		long delta = entry.deadlineTick - currentTick;
+		int level = 0;
+		while(level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+			level++;
+		}
+		int slot = (int) ((entry.deadlineTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+		slots.get(level * SLOTS + slot).add(entry);
+	}
+
+	/**
+	 * An item and the tick it expires on
+	 */
+	private static class Entry<T> {
+		private T item;
+		private long deadlineTick;
+
+		private Entry(T item, long deadlineTick) {
+			this.item = item;
+			this.deadlineTick = deadlineTick;
+		}
+	}
+}
@@ -10,10 +10,8 @@ import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.sql.SQLException;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map.Entry;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -30,10 +28,12 @@ import javax.swing.JTabbedPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.border.EmptyBorder;
 import yuconz23d.ActionType;
 import yuconz23d.Column;
 import yuconz23d.Record;
+import yuconz23d.RecordSchema;
 import yuconz23d.RecordType;
 import yuconz23d.Role;
 import yuconz23d.YuconzApp;
@@ -417,7 +417,6 @@ public class GUIHandler {
 		loadButton.setToolTipText("Load a " + recordType.name() + " record into view");
 		loadButton.addActionListener(new ActionListener() {
 
-			@SuppressWarnings("unchecked")
 			@Override
 			public void actionPerformed(ActionEvent arg0) {
 				String targetEmployee = (String) JOptionPane.showInputDialog(
@@ -440,75 +439,97 @@ public class GUIHandler {
 						ActionType.VIEW,
 						permissionCheckPlaceholder);
 				if(hasViewPermission) {
-					Object viewResult = null;
-					try {
-						viewResult = app.viewRecord(recordType, targetEmployee);
-					} catch (SQLException e1) {
-						JOptionPane.showMessageDialog(frame, "An error occured when retrieving the record!");
-						e1.printStackTrace();
+					// Read off the event thread, so the window stays responsive whilst the record is found
+					loadButton.setEnabled(false);
+					app.viewRecordAsync(recordType, targetEmployee).whenComplete((viewResult, error) -> SwingUtilities.invokeLater(() -> {
+						loadButton.setEnabled(true);
+						if(error != null) {
+							JOptionPane.showMessageDialog(frame, "An error occured when retrieving the record!");
+							error.printStackTrace();
+							return;
+						}
+						showViewResult(viewResult);
+					}));
+				} else {
+					JOptionPane.showMessageDialog(frame, "You don't have permission to view this " + recordType.name() + " record");
+				}
+			}
+			
+			/**
+			 * Shows a viewed record in the form, first asking which one to show when several were found
+			 * @param viewResult The Record, List of Records or null as returned by YuconzApp.viewRecord()
+			 */
+			@SuppressWarnings("unchecked")
+			private void showViewResult(Object viewResult) {
+				if (viewResult instanceof List<?>) {
+					List<Record> records = app.filterPermitted(
+							app.getCurrentUser(),
+							app.getCurrentEmployee(),
+							app.getCurrentRole(),
+							ActionType.VIEW,
+							(List<Record>) viewResult);
+					if(records.isEmpty()) {
+						JOptionPane.showMessageDialog(frame, "You don't have permission to view any of these " + recordType.name() + " records");
+						return;
+					}
+					Object options[] = new Object[records.size()];
+					for(int i=0; i < records.size(); i++) {
+						Record current = records.get(i);
+						RecordSchema columns = current.getSchema();
+						String option = "";
+						for(int col=0; col < columns.size(); col++) {
+							String currKey = columns.getColumnName(col);
+							Object currVal = current.getValue(col);
+							option += currKey + ": ";
+							option += currVal;
+							option += "  |  ";
+						}
+						options[i] = option;
 					}
+					String choice = (String)JOptionPane.showInputDialog(
+							frame,
+							"Multiple records found!"
+							+ "\n\n Please pick the one which you want to view:",
+							"Record Selection",
+							JOptionPane.PLAIN_MESSAGE,
+							null,
+							options,
+							options[0]);
 					
-					if (viewResult instanceof List<?>) {
-						List<Record> records = (List<Record>) viewResult;
-						Object options[] = new Object[records.size()];
-						for(int i=0; i < records.size(); i++) {
-							LinkedHashMap<String, Object> columns = records.get(i).getRecordAsMap();
-							String option = "";
-							for(Entry<String, Object> entry : columns.entrySet()) {
-								String currKey = entry.getKey();
-								Object currVal = entry.getValue();
-								option += currKey + ": ";
-								option += currVal;
-								option += "  |  ";
-							}
-							options[i] = option;
+					int chosenIndex = 0;
+					for(int i=0; i < records.size(); i++) {
+						if(options[i].equals(choice)) {
+							chosenIndex = i;
+							viewResult = records.get(chosenIndex);
+							break;
 						}
-						String choice = (String)JOptionPane.showInputDialog(
-								frame,
-								"Multiple records found!"
-								+ "\n\n Please pick the one which you want to view:",
-								"Record Selection",
-								JOptionPane.PLAIN_MESSAGE,
-								null,
-								options,
-								options[0]);
-						
-						int chosenIndex = 0;
-						for(int i=0; i < records.size(); i++) {
-							if(options[i].equals(choice)) {
-								chosenIndex = i;
-								viewResult = records.get(chosenIndex);
-								break;
-							}
+					}
+				}
+				
+				if(viewResult instanceof Record) {
+					for(Component currField : inputFields.values()) {
+						if(currField instanceof JTextField) {
+							((JTextField) currField).setEditable(false);
+						}
+						else if(currField instanceof JTextArea) {
+							((JTextArea) currField).setEditable(false);
 						}
 					}
-					
-					if(viewResult instanceof Record) {
-						for(Component currField : inputFields.values()) {
-							if(currField instanceof JTextField) {
-								((JTextField) currField).setEditable(false);
-							}
-							else if(currField instanceof JTextArea) {
-								((JTextArea) currField).setEditable(false);
-							}
+					Record viewed = (Record) viewResult;
+					RecordSchema viewedColumns = viewed.getSchema();
+					for(int col=0; col < viewedColumns.size(); col++) {
+						String currKey = viewedColumns.getColumnName(col);
+						Object currValue = viewed.getValue(col);
+						Component currField = inputFields.get(currKey);
+						if(currField instanceof JTextField) {
+							((JTextField) currField).setText(currValue + "");
 						}
-						HashMap<String, Object> recordValues = ((Record) viewResult).getRecordAsMap();
-						for(Entry<String, Object> curr : recordValues.entrySet()) {
-							String currKey = curr.getKey();
-							Object currValue = curr.getValue();
-							Component currField = inputFields.get(currKey);
-							if(currField instanceof JTextField) {
-								((JTextField) currField).setText(currValue + "");
-							}
-							else if(currField instanceof JTextArea) {
-								((JTextArea) currField).setText(currValue + "");
-							}
+						else if(currField instanceof JTextArea) {
+							((JTextArea) currField).setText(currValue + "");
 						}
-					} else {
-						JOptionPane.showMessageDialog(frame, "No " + recordType.name() + " record(s) found for this employee ID");
 					}
 				} else {
-					JOptionPane.showMessageDialog(frame, "You don't have permission to view this " + recordType.name() + " record");
+					JOptionPane.showMessageDialog(frame, "No " + recordType.name() + " record(s) found for this employee ID");
 				}
 			}
 			
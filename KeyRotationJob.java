@@ -0,0 +1,259 @@
+package yuconz23d;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Re-encrypts every encrypted column of every record type with the current
+ * key, after a new key has been added with Encryption.addKey(), whilst the
+ * system carries on being used.
+ *
+ * Each table is walked a chunk of rows at a time, found by rowid so every
+ * chunk is as quick to find as the first. The values in a chunk are
+ * decrypted and re-encrypted in parallel, then written back in a single
+ * transaction along with a checkpoint of how far the table has got, so a
+ * job which is stopped (or crashes) carries on from the last chunk it
+ * committed. Values a user saves in the meantime are already under the new
+ * key and are never overwritten. Values encrypted before they were bound to
+ * their record (stored as "enc:v1:") are re-encrypted bound to it.
+ *
+ * To keep viewing and saving records responsive, the job rests after every
+ * chunk for long enough that it's only working for a set share of the time
+ * (a quarter by default), so it never holds the HR writer for long.
+ */
+public class KeyRotationJob {
+	private static final int DEFAULT_CHUNK_SIZE = 200;
+	private static final double DEFAULT_DUTY_CYCLE = 0.25;
+
+	private DatabaseHandler db;
+	private Encryption encryption;
+	private int chunkSize;
+	private double dutyCycle;
+	private int parallelism;
+	private volatile boolean stopped;
+
+	private AtomicLong rowsScanned = new AtomicLong();
+	private AtomicLong valuesReencrypted = new AtomicLong();
+	private AtomicLong chunksCommitted = new AtomicLong();
+
+	/**
+	 * Constructs a job which re-encrypts with the shared Encryption engine's current key
+	 * @param db The DatabaseHandler through which records are read and written
+	 */
+	public KeyRotationJob(DatabaseHandler db) {
+		this(db, Encryption.getShared());
+	}
+
+	/**
+	 * Constructs a job which re-encrypts with the given engine's current key
+	 * @param db The DatabaseHandler through which records are read and written
+	 * @param encryption The Encryption engine holding both the old and new keys
+	 */
+	public KeyRotationJob(DatabaseHandler db, Encryption encryption) {
+		this.db = db;
+		this.encryption = encryption;
+		this.chunkSize = DEFAULT_CHUNK_SIZE;
+		this.dutyCycle = DEFAULT_DUTY_CYCLE;
+		this.parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+	}
+
+	/**
+	 * Sets how many rows are re-encrypted and committed together
+	 * @param chunkSize The number of rows per chunk, must be at least 1
+	 */
+	public void setChunkSize(int chunkSize) {
+		if(chunkSize < 1) {
+			throw new IllegalArgumentException("Chunk size must be at least 1");
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Sets the share of the time the job spends working rather than resting
+	 * @param dutyCycle Between 0 (exclusive), for always resting, and 1, for never resting
+	 */
+	public void setDutyCycle(double dutyCycle) {
+		if(dutyCycle <= 0 || dutyCycle > 1) {
+			throw new IllegalArgumentException("Duty cycle must be above 0 and at most 1");
+		}
+		this.dutyCycle = dutyCycle;
+	}
+
+	/**
+	 * Sets how many threads decrypt and re-encrypt each chunk
+	 * @param parallelism The number of threads, must be at least 1
+	 */
+	public void setParallelism(int parallelism) {
+		if(parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+		}
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Runs the job on a background thread
+	 * @return Future of the number of values re-encrypted, completing once every table is done or the job is stopped
+	 */
+	public CompletableFuture<Long> start() {
+		stopped = false;
+		CompletableFuture<Long> result = new CompletableFuture<>();
+		Thread runner = WorkerExecutors.daemonThreads("yuconz-key-rotation").newThread(() -> {
+			try {
+				result.complete(run());
+			} catch(SQLException | RuntimeException e) {
+				result.completeExceptionally(e);
+			}
+		});
+		runner.start();
+		return result;
+	}
+
+	/**
+	 * Asks a running job to stop once its current chunk is committed.
+	 * Running it again carries on from there.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Re-encrypts every encrypted column of every record type, on the calling thread
+	 * @return The number of values re-encrypted
+	 * @throws SQLException When an SQL connection/transaction error occurs, the job can be run again to resume
+	 */
+	public long run() throws SQLException {
+		String keyId = encryption.getCurrentKeyId();
+		long before = valuesReencrypted.get();
+		ExecutorService workers = Executors.newFixedThreadPool(parallelism, WorkerExecutors.daemonThreads("yuconz-key-rotation-worker"));
+		try {
+			for(RecordType recordType : RecordType.values()) {
+				String[] columns = encryptedColumnsOf(recordType);
+				if(columns.length > 0 && !stopped) {
+					rotateTable(recordType, columns, keyId, workers);
+				}
+			}
+		} finally {
+			workers.shutdownNow();
+		}
+		return valuesReencrypted.get() - before;
+	}
+
+	/**
+	 * @return The number of rows read so far
+	 */
+	public long getRowsScanned() {
+		return rowsScanned.get();
+	}
+
+	/**
+	 * @return The number of values re-encrypted so far
+	 */
+	public long getValuesReencrypted() {
+		return valuesReencrypted.get();
+	}
+
+	/**
+	 * @return The number of chunks committed so far
+	 */
+	public long getChunksCommitted() {
+		return chunksCommitted.get();
+	}
+
+	private void rotateTable(RecordType recordType, String[] columns, String keyId, ExecutorService workers) throws SQLException {
+		long lastRowid = db.getRotationCheckpoint(recordType, keyId);
+		if(lastRowid < 0) {
+			return; // Already finished with this key
+		}
+		WritePlan plan = WritePlan.forType(recordType);
+		while(!stopped) {
+			long start = System.nanoTime();
+			ArrayList<Object[]> page = db.getEncryptedPage(recordType, columns, plan.getKeyColumns(), lastRowid, chunkSize);
+			boolean done = page.size() < chunkSize;
+			if(!page.isEmpty()) {
+				lastRowid = (Long) page.get(page.size() - 1)[0];
+			}
+			List<Object[]> rewritten = reencrypt(plan, columns, page, workers);
+			valuesReencrypted.addAndGet(db.writeReencryptedChunk(recordType, columns, page, rewritten, keyId, lastRowid, done));
+			rowsScanned.addAndGet(page.size());
+			chunksCommitted.incrementAndGet();
+			if(done) {
+				return;
+			}
+			rest(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Re-encrypts a chunk's values in parallel, splitting its rows evenly between the workers
+	 * @return The new values, in the same layout as the page, null where a value doesn't need rewriting
+	 */
+	private List<Object[]> reencrypt(WritePlan plan, String[] columns, List<Object[]> page, ExecutorService workers) {
+		Object[][] rewritten = new Object[page.size()][];
+		int slices = Math.min(parallelism, page.size());
+		List<CompletableFuture<Void>> tasks = new ArrayList<>(slices);
+		for(int slice=0; slice < slices; slice++) {
+			int from = page.size() * slice / slices;
+			int to = page.size() * (slice + 1) / slices;
+			tasks.add(CompletableFuture.runAsync(() -> {
+				for(int r=from; r < to; r++) {
+					Object[] row = page.get(r);
+					Object[] newRow = new Object[row.length];
+					// The record key follows the encrypted columns in each row
+					Object[] keyValues = Arrays.copyOfRange(row, columns.length + 1, row.length);
+					for(int i=1; i <= columns.length; i++) {
+						String stored = (String) row[i];
+						if(encryption.needsReencryption(stored)) {
+							String context = plan.encryptionContext(columns[i - 1], keyValues);
+							newRow[i] = encryption.encrypt(encryption.decrypt(stored, context), context);
+						}
+					}
+					rewritten[r] = newRow;
+				}
+			}, workers));
+		}
+		try {
+			CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+		} catch(RuntimeException e) {
+			Throwable cause = e.getCause() == null ? e : e.getCause();
+			throw new IllegalStateException("Unable to re-encrypt values: " + cause.getMessage(), cause);
+		}
+		List<Object[]> result = new ArrayList<>(rewritten.length);
+		for(Object[] row : rewritten) {
+			result.add(row);
+		}
+		return result;
+	}
+
+	/**
+	 * Rests long enough after a chunk that the job only works for its duty cycle
+	 */
+	private void rest(long workedNanos) {
+		long restNanos = (long) (workedNanos * (1 - dutyCycle) / dutyCycle);
+		if(restNanos <= 0) {
+			return;
+		}
+		try {
+			TimeUnit.NANOSECONDS.sleep(restNanos);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			stopped = true;
+		}
+	}
+
+	private static String[] encryptedColumnsOf(RecordType recordType) {
+		ArrayList<String> columns = new ArrayList<>();
+		for(Column column : recordType.getColumns()) {
+			if(column.isEncrypted()) {
+				columns.add(column.getName());
+			}
+		}
+		return columns.toArray(new String[columns.size()]);
+	}
+}
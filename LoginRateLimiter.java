@@ -0,0 +1,214 @@
+package yuconz23d;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits how often logins can be attempted, both for each userID and for
+ * the whole system, so a burst of bad attempts is turned away before it
+ * reaches the database rather than slowing it down for everyone.
+ *
+ * Each limit is a token bucket which allows a burst of attempts, then
+ * refills at a steady rate. The buckets are kept as a single AtomicLong
+ * holding the time the bucket will next be full (the generic cell rate
+ * algorithm), so taking a token is one compare-and-set and no attempt
+ * ever waits on a lock.
+ *
+ * The per-user limit is checked first, so one user hammering their own
+ * login doesn't use up the global allowance for everyone else. When the
+ * global limit turns an attempt away the user's token is given back, as
+ * the attempt never happened.
+ *
+ * Looking up the roles on offer comes before each login, so it's limited
+ * by tryAcquireLookup(), which takes a global token but only checks the
+ * user's bucket. Every lookup still counts against the whole system, even
+ * for userIDs that don't exist, whilst a user is only charged once for a
+ * lookup and the login attempt that follows it.
+ */
+public class LoginRateLimiter {
+	private static final int DEFAULT_USER_BURST = 10;
+	private static final long DEFAULT_USER_INTERVAL_MILLIS = 3000;
+	private static final int DEFAULT_GLOBAL_BURST = 100;
+	private static final long DEFAULT_GLOBAL_INTERVAL_MILLIS = 20;
+	// Above this many tracked users, users whose buckets have refilled are forgotten
+	private static final int MAX_TRACKED_USERS = 10000;
+	// How often the tracked users may be scanned for ones to forget
+	private static final long FORGET_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private static final LoginRateLimiter shared = new LoginRateLimiter(DEFAULT_USER_BURST, DEFAULT_USER_INTERVAL_MILLIS,
+			DEFAULT_GLOBAL_BURST, DEFAULT_GLOBAL_INTERVAL_MILLIS);
+
+	private long userInterval;
+	private long userTolerance;
+	private long globalInterval;
+	private long globalTolerance;
+	private ConcurrentHashMap<String, AtomicLong> users = new ConcurrentHashMap<>();
+	private AtomicLong global = new AtomicLong(Long.MIN_VALUE);
+	private AtomicLong lastForget = new AtomicLong(System.nanoTime() - FORGET_INTERVAL_NANOS);
+
+	private LongAdder allowed = new LongAdder();
+	private LongAdder userRejections = new LongAdder();
+	private LongAdder globalRejections = new LongAdder();
+
+	/**
+	 * Constructs a rate limiter
+	 * @param userBurst How many attempts one userID can make at once
+	 * @param userIntervalMillis How often one userID earns another attempt
+	 * @param globalBurst How many attempts can be made at once across every userID
+	 * @param globalIntervalMillis How often another attempt is earned across every userID
+	 */
+	public LoginRateLimiter(int userBurst, long userIntervalMillis, int globalBurst, long globalIntervalMillis) {
+		if(userBurst < 1 || globalBurst < 1 || userIntervalMillis < 1 || globalIntervalMillis < 1) {
+			throw new IllegalArgumentException("Bursts and intervals must be at least 1");
+		}
+		this.userInterval = TimeUnit.MILLISECONDS.toNanos(userIntervalMillis);
+		this.userTolerance = userInterval * (userBurst - 1);
+		this.globalInterval = TimeUnit.MILLISECONDS.toNanos(globalIntervalMillis);
+		this.globalTolerance = globalInterval * (globalBurst - 1);
+	}
+
+	/**
+	 * Retrieves the limiter shared by every Authentication
+	 * @return The shared LoginRateLimiter
+	 */
+	public static LoginRateLimiter getShared() {
+		return shared;
+	}
+
+	/**
+	 * Takes a token for a login attempt, from the user's bucket then the global one
+	 * @param userID The user the attempt is for
+	 * @return true if the attempt may go ahead, false if it's over either limit
+	 */
+	public boolean tryAcquire(String userID) {
+		long now = System.nanoTime();
+		String key = userID == null ? "" : userID;
+		AtomicLong bucket = users.get(key);
+		if(bucket == null) {
+			if(users.size() >= MAX_TRACKED_USERS) {
+				forgetIdle(now);
+			}
+			bucket = users.computeIfAbsent(key, user -> new AtomicLong(Long.MIN_VALUE));
+		}
+		if(!take(bucket, now, userInterval, userTolerance)) {
+			userRejections.increment();
+			return false;
+		}
+		if(!take(global, now, globalInterval, globalTolerance)) {
+			bucket.addAndGet(-userInterval); // Gives the user's token back
+			globalRejections.increment();
+			return false;
+		}
+		allowed.increment();
+		return true;
+	}
+
+	/**
+	 * Takes a global token for the lookup made before a login attempt. The
+	 * user's bucket is only checked, as the login attempt takes their token.
+	 * @param userID The user the lookup is for
+	 * @return true if the lookup may go ahead, false if it's over either limit
+	 */
+	public boolean tryAcquireLookup(String userID) {
+		long now = System.nanoTime();
+		AtomicLong bucket = users.get(userID == null ? "" : userID);
+		if(bucket != null && !hasToken(bucket, now, userTolerance)) {
+			userRejections.increment();
+			return false;
+		}
+		if(!take(global, now, globalInterval, globalTolerance)) {
+			globalRejections.increment();
+			return false;
+		}
+		allowed.increment();
+		return true;
+	}
+
+	/**
+	 * @return The number of attempts allowed through
+	 */
+	public long getAllowed() {
+		return allowed.sum();
+	}
+
+	/**
+	 * @return The number of attempts turned away by a user's limit
+	 */
+	public long getUserRejections() {
+		return userRejections.sum();
+	}
+
+	/**
+	 * @return The number of attempts turned away by the global limit
+	 */
+	public long getGlobalRejections() {
+		return globalRejections.sum();
+	}
+
+	/**
+	 * @return The number of attempts turned away by either limit
+	 */
+	public long getRejections() {
+		return userRejections.sum() + globalRejections.sum();
+	}
+
+	/**
+	 * @return The number of userIDs currently being tracked
+	 */
+	public int getTrackedUsers() {
+		return users.size();
+	}
+
+	/**
+	 * Returns the limiter's counters as a one-line summary
+	 */
+	public String toString() {
+		return "LoginRateLimiter[allowed=" + allowed.sum()
+				+ " userRejections=" + userRejections.sum()
+				+ " globalRejections=" + globalRejections.sum()
+				+ " trackedUsers=" + users.size() + "]";
+	}
+
+	/**
+	 * Takes a token from a bucket. The bucket holds its theoretical arrival
+	 * time, when it would be full again had every attempt been spaced out
+	 * evenly, and an attempt is allowed as long as that's no further ahead
+	 * of now than the burst allows.
+	 */
+	private static boolean take(AtomicLong bucket, long now, long interval, long tolerance) {
+		while(true) {
+			long arrival = bucket.get();
+			// Long.MIN_VALUE marks a bucket which has never been used, so is full
+			long start = arrival == Long.MIN_VALUE || arrival - now < 0 ? now : arrival;
+			if(start - now > tolerance) {
+				return false;
+			}
+			if(bucket.compareAndSet(arrival, start + interval)) {
+				return true;
+			}
+		}
+	}
+
+	private static boolean hasToken(AtomicLong bucket, long now, long tolerance) {
+		long arrival = bucket.get();
+		return arrival == Long.MIN_VALUE || arrival - now <= tolerance;
+	}
+
+	/**
+	 * Forgets users whose buckets have refilled, as they'd be recreated full
+	 * anyway. Scans at most once a second, however many new users arrive in
+	 * that time, so the tracked users can briefly go over the limit.
+	 */
+	private void forgetIdle(long now) {
+		long last = lastForget.get();
+		if(now - last < FORGET_INTERVAL_NANOS || !lastForget.compareAndSet(last, now)) {
+			return; // Scanned recently, or another thread is scanning now
+		}
+		users.values().removeIf(bucket -> {
+			long arrival = bucket.get();
+			return arrival == Long.MIN_VALUE || arrival - now <= 0;
+		});
+	}
+}
@@ -0,0 +1,107 @@
+package yuconz23d;
+
+/**
+ * The outcome of a login attempt, as worked out by DatabaseHandler.login().
+ * Holds everything needed to start the user's session, so nothing more
+ * has to be looked up once the login has succeeded.
+ */
+public class LoginResult {
+
+	/**
+	 * The possible outcomes of a login attempt
+	 */
+	public enum Status {
+		SUCCESS,
+		UNKNOWN_USER,
+		WRONG_PASSWORD,
+		RATE_LIMITED,
+		/** The password was right but the account's system access has been removed */
+		NO_SYSTEM_ACCESS,
+		/** The password was right but the user may not log in as the role they selected */
+		ROLE_NOT_PERMITTED
+	}
+
+	private Status status;
+	private String userId;
+	private String staffNo;
+	private Role role;
+	private Integer highestRole;
+	private boolean systemAccess;
+
+	/**
+	 * Constructs the result of a login attempt
+	 * @param status Whether the login succeeded, and why not if it didn't
+	 * @param userId The user who attempted to log in
+	 * @param staffNo The employeeId belonging to the user, null if they have none
+	 * @param role The role the user logged in as, null unless the login succeeded
+	 * @param highestRole The highest role level the user could log in as, null if it couldn't be found
+	 * @param systemAccess Whether the user's account has system access (isn't suspended)
+	 */
+	public LoginResult(Status status, String userId, String staffNo, Role role, Integer highestRole, boolean systemAccess) {
+		this.status = status;
+		this.userId = userId;
+		this.staffNo = staffNo;
+		this.role = role;
+		this.highestRole = highestRole;
+		this.systemAccess = systemAccess;
+	}
+
+	/**
+	 * Constructs the result of a login attempt which failed before anything about the user was found
+	 * @param status Why the login failed
+	 * @param userId The user who attempted to log in
+	 * @return The failed LoginResult
+	 */
+	public static LoginResult failed(Status status, String userId) {
+		return new LoginResult(status, userId, null, null, null, false);
+	}
+
+	/**
+	 * @return true when the login succeeded and a session was added
+	 */
+	public boolean isSuccess() {
+		return status == Status.SUCCESS;
+	}
+
+	/**
+	 * @return Whether the login succeeded, and why not if it didn't
+	 */
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return The user who attempted to log in
+	 */
+	public String getUserId() {
+		return userId;
+	}
+
+	/**
+	 * @return The employeeId belonging to the user, null if they have none
+	 */
+	public String getStaffNo() {
+		return staffNo;
+	}
+
+	/**
+	 * @return The role the user logged in as, null unless the login succeeded
+	 */
+	public Role getRole() {
+		return role;
+	}
+
+	/**
+	 * @return The highest role level the user could log in as, null if it couldn't be found
+	 */
+	public Integer getHighestRole() {
+		return highestRole;
+	}
+
+	/**
+	 * @return Whether the user's account has system access (isn't suspended)
+	 */
+	public boolean hasSystemAccess() {
+		return systemAccess;
+	}
+}
@@ -0,0 +1,142 @@
+package yuconz23d;
+
+import java.util.Arrays;
+
+/**
+ * A set of non-negative long values stored in a plain long array, so that
+ * looking a value up never boxes it or allocates. Used to hold encoded
+ * PermissionKeys.
+ *
+ * Uses open addressing with linear probing. Negative values can't be
+ * stored, as -1 marks an empty slot. Not thread safe, sets should be
+ * filled before they are shared and only read afterwards.
+ */
+public class LongHashSet {
+	private static final long EMPTY = -1L;
+
+	private long[] slots;
+	private int size;
+
+	/**
+	 * Constructs an empty set
+	 */
+	public LongHashSet() {
+		this(8);
+	}
+
+	/**
+	 * Constructs an empty set sized to hold the given number of values without growing
+	 * @param expectedSize The number of values expected
+	 */
+	public LongHashSet(int expectedSize) {
+		int capacity = 8;
+		while(capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		slots = newSlots(capacity);
+	}
+
+	/**
+	 * Adds a value to the set
+	 * @param value The value, must not be negative
+	 * @return true if the value was added, false if it was already in the set
+	 * @throws IllegalArgumentException If the value is negative
+	 */
+	public boolean add(long value) {
+		if(value < 0) {
+			throw new IllegalArgumentException("LongHashSet can't hold negative values: " + value);
+		}
+		if((size + 1) * 2 > slots.length) {
+			resize(slots.length * 2);
+		}
+		if(insert(slots, value)) {
+			size++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether a value is in the set
+	 * @param value The value to look for
+	 * @return true if the value is in the set
+	 */
+	public boolean contains(long value) {
+		if(value < 0) {
+			return false;
+		}
+		int mask = slots.length - 1;
+		int i = hash(value) & mask;
+		while(slots[i] != EMPTY) {
+			if(slots[i] == value) {
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	/**
+	 * @return The number of values in the set
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return true if the set holds no values
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Copies the values out of the set
+	 * @return Array of every value in the set, in no particular order
+	 */
+	public long[] toArray() {
+		long[] values = new long[size];
+		int count = 0;
+		for(long slot : slots) {
+			if(slot != EMPTY) {
+				values[count++] = slot;
+			}
+		}
+		return values;
+	}
+
+	private void resize(int capacity) {
+		long[] resized = newSlots(capacity);
+		for(long slot : slots) {
+			if(slot != EMPTY) {
+				insert(resized, slot);
+			}
+		}
+		slots = resized;
+	}
+
+	private static boolean insert(long[] table, long value) {
+		int mask = table.length - 1;
+		int i = hash(value) & mask;
+		while(table[i] != EMPTY) {
+			if(table[i] == value) {
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		table[i] = value;
+		return true;
+	}
+
+	private static long[] newSlots(int capacity) {
+		long[] table = new long[capacity];
+		Arrays.fill(table, EMPTY);
+		return table;
+	}
+
+	private static int hash(long value) {
+		// Mixes the high bits in, since a key's record and action live at the top of the long
+		long h = value * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,225 @@
+package yuconz23d;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Hashes and verifies passwords with salted PBKDF2 (HMAC-SHA256). Hashes
+ * are stored in the Users table as "pbkdf2$&lt;iterations&gt;$&lt;salt&gt;$&lt;hash&gt;",
+ * with the salt and hash Base64 encoded, so each row records the cost it
+ * was hashed with.
+ *
+ * The number of iterations is calibrated when the hasher is created, by
+ * timing hashes on this machine until one takes about the target time.
+ * Rows stored as plain text (from before passwords were hashed) or with
+ * fewer iterations than the calibrated count still verify, and
+ * needsRehash() reports that they should be replaced.
+ *
+ * Hashing is deliberately slow, so every hash and verification runs on a
+ * small, bounded pool of threads. A burst of logins queues up there, and
+ * is turned away once the queue is full, rather than taking every thread
+ * the rest of the system needs.
+ */
+public class PasswordHasher {
+	private static final String PREFIX = "pbkdf2";
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+	private static final int SALT_BYTES = 16;
+	private static final int HASH_BITS = 256;
+	private static final int MIN_ITERATIONS = 10000;
+	private static final long DEFAULT_TARGET_MILLIS = 100;
+	private static final int QUEUE_SIZE = 64;
+
+	private static volatile PasswordHasher shared;
+
+	private int iterations;
+	private SecureRandom random = new SecureRandom();
+	private ThreadPoolExecutor workers;
+
+	/**
+	 * Constructs a hasher with a fixed number of iterations
+	 * @param iterations The number of PBKDF2 iterations new hashes are made with
+	 */
+	public PasswordHasher(int iterations) {
+		this.iterations = Math.max(iterations, MIN_ITERATIONS);
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(QUEUE_SIZE), WorkerExecutors.daemonThreads("yuconz-passwords"));
+	}
+
+	/**
+	 * Constructs a hasher whose iteration count is calibrated so that verifying
+	 * a password takes about the given time on this machine
+	 * @param targetMillis How long one verification should take
+	 * @return The calibrated PasswordHasher
+	 */
+	public static PasswordHasher calibrated(long targetMillis) {
+		return new PasswordHasher(calibrate(targetMillis));
+	}
+
+	/**
+	 * Retrieves the hasher shared by every Authentication, calibrating it the first time
+	 * @return The shared PasswordHasher
+	 */
+	public static PasswordHasher getShared() {
+		if(shared == null) {
+			synchronized(PasswordHasher.class) {
+				if(shared == null) {
+					shared = calibrated(DEFAULT_TARGET_MILLIS);
+				}
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * Works out how many iterations take about the given time on this machine.
+	 * The iterations are doubled until a hash takes a good fraction of the
+	 * target, so the timing isn't dominated by noise, then scaled up to it.
+	 * @param targetMillis How long one hash should take
+	 * @return The number of iterations, never below the minimum
+	 */
+	public static int calibrate(long targetMillis) {
+		char[] sample = "calibration".toCharArray();
+		byte[] salt = new byte[SALT_BYTES];
+		pbkdf2(sample, salt, MIN_ITERATIONS); // Warms the JIT up before anything is timed
+
+		long targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+		int trial = MIN_ITERATIONS;
+		while(true) {
+			long start = System.nanoTime();
+			pbkdf2(sample, salt, trial);
+			long elapsed = Math.max(1, System.nanoTime() - start);
+			if(elapsed >= targetNanos / 4 || trial >= Integer.MAX_VALUE / 2) {
+				long scaled = trial * targetNanos / elapsed;
+				return (int) Math.max(MIN_ITERATIONS, Math.min(Integer.MAX_VALUE, scaled));
+			}
+			trial *= 2;
+		}
+	}
+
+	/**
+	 * @return The number of iterations new hashes are made with
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * Hashes a password with a new random salt, on the hashing pool
+	 * @param password The password to hash
+	 * @return The hash, in the form stored in the Users table
+	 * @throws IllegalStateException When too many passwords are already waiting to be hashed
+	 */
+	public String hash(String password) {
+		return run(() -> {
+			byte[] salt = new byte[SALT_BYTES];
+			random.nextBytes(salt);
+			byte[] hash = pbkdf2(password.toCharArray(), salt, iterations);
+			Base64.Encoder encoder = Base64.getEncoder();
+			return PREFIX + "$" + iterations + "$" + encoder.encodeToString(salt) + "$" + encoder.encodeToString(hash);
+		});
+	}
+
+	/**
+	 * Checks a password against what's stored for the user, on the hashing pool.
+	 * Stored values that aren't PBKDF2 hashes are compared as plain text.
+	 * @param password The password that was entered
+	 * @param stored The user's stored password or hash
+	 * @return true if the password is correct
+	 * @throws IllegalStateException When too many passwords are already waiting to be verified
+	 */
+	public boolean verify(String password, String stored) {
+		if(stored == null) {
+			return false;
+		}
+		if(!stored.startsWith(PREFIX + "$")) {
+			// Compared in constant time, so the comparison doesn't give away how much matched
+			return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+		}
+		String[] parts = stored.split("\\$");
+		if(parts.length != 4) {
+			return false;
+		}
+		int storedIterations;
+		byte[] salt;
+		byte[] expected;
+		try {
+			storedIterations = Integer.parseInt(parts[1]);
+			salt = Base64.getDecoder().decode(parts[2]);
+			expected = Base64.getDecoder().decode(parts[3]);
+		} catch(IllegalArgumentException e) {
+			System.err.println("Malformed password hash: " + e.getMessage());
+			return false;
+		}
+		return run(() -> MessageDigest.isEqual(expected, pbkdf2(password.toCharArray(), salt, storedIterations)));
+	}
+
+	/**
+	 * Checks whether a stored password should be replaced by a fresh hash,
+	 * because it's plain text or was hashed with fewer iterations than now
+	 * @param stored The user's stored password or hash
+	 * @return true if it should be rehashed
+	 */
+	public boolean needsRehash(String stored) {
+		if(stored == null || !stored.startsWith(PREFIX + "$")) {
+			return true;
+		}
+		String[] parts = stored.split("\\$");
+		try {
+			return parts.length != 4 || Integer.parseInt(parts[1]) < iterations;
+		} catch(NumberFormatException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * @return The number of hashes or verifications waiting for a thread
+	 */
+	public int getQueued() {
+		return workers.getQueue().size();
+	}
+
+	/**
+	 * Runs a task on the hashing pool and waits for its result
+	 */
+	private <T> T run(Callable<T> task) {
+		Future<T> result;
+		try {
+			result = workers.submit(task);
+		} catch(RejectedExecutionException e) {
+			throw new IllegalStateException("Too many passwords are waiting to be checked", e);
+		}
+		try {
+			return result.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			result.cancel(true);
+			throw new IllegalStateException("Interrupted whilst checking a password", e);
+		} catch(ExecutionException e) {
+			throw new IllegalStateException("Unable to check a password", e.getCause());
+		}
+	}
+
+	private static byte[] pbkdf2(char[] password, byte[] salt, int iterations) {
+		KeySpec spec = new PBEKeySpec(password, salt, iterations, HASH_BITS);
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		} catch(GeneralSecurityException e) {
+			throw new IllegalStateException(ALGORITHM + " isn't available", e);
+		}
+	}
+}
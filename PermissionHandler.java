@@ -2,7 +2,9 @@ package yuconz23d;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * Used to handle Permissions, including checking user's
@@ -11,13 +13,23 @@ import java.util.HashMap;
  *
  */
 public class PermissionHandler {
+	// Shared by every PermissionHandler, the grants are the same for everyone
+	private static PermissionMatrix matrix;
+	
 	DatabaseHandler db;
 	
 	/**
-	 * Constructs a new PermissionHandler, initialising the db field
+	 * Constructs a new PermissionHandler, initialising the db field and
+	 * loading the permission matrix if this is the first handler
 	 */
 	public PermissionHandler() {
 		db = new DatabaseHandler();
+		synchronized(PermissionHandler.class) {
+			if(matrix == null) {
+				matrix = new PermissionMatrix(db);
+				matrix.startWatching();
+			}
+		}
 	}
 	
 	
@@ -31,50 +43,184 @@ public class PermissionHandler {
 	 * @return True if the user has permission to do this, false otherwise
 	 */
 	public boolean hasPermission(String userId, String staffNo, Role authRole, ActionType action, Record targetRecord) {
-		ArrayList<String> targetPerms = generatePermissionStrings(userId, staffNo, authRole, action, targetRecord);
-		
-		// Check the PermissionsByRole table
-		try {
-			for(String perm : targetPerms) {
-				if(db.checkPermissionByRole(authRole, perm)) {
-					return true;
-				}
-			}
-		} catch (SQLException e) {
-			e.printStackTrace();
-			return false;
+		PermissionMatrix.Snapshot grants = matrix.getSnapshot();
+		if(grants == null) {
+			// The grants couldn't be loaded into memory, so ask the database instead
+			ArrayList<String> targetPerms = generatePermissionStrings(userId, staffNo, authRole, action, targetRecord);
+			return hasPermissionInDatabase(userId, staffNo, authRole, targetPerms);
 		}
 		
+		// Checked against the encoded grants, so no permission strings need building
+		RecordType recordType = targetRecord.getRecordType();
+		String targetEmployeeId = (String) targetRecord.getValue("employeeId");
+		boolean self = targetEmployeeId != null && targetEmployeeId.equals(staffNo);
+		
+		// Role, user and request grants are checked first as they need nothing from the database
+		if(grants.forRole(authRole).allows(recordType, action, self, targetEmployeeId)
+				|| grants.forUser(userId).allows(recordType, action, self, targetEmployeeId)
+				|| matrix.getRequestGrants().forUser(userId).allows(recordType, action, self, targetEmployeeId)) {
+			return true;
+		}
 		
-		// Check the PermissionsByDepartment
 		try {
 			int employeeDepartment = db.getDepartmentId(staffNo);
-			for(String perm : targetPerms) {
-				if (db.checkPermissionByDepartment(employeeDepartment, perm)) {
-					return true;
-				}
+			if(grants.forDepartment(employeeDepartment).allows(recordType, action, self, targetEmployeeId)) {
+				return true;
 			}
 		} catch(SQLException e) {
 			e.printStackTrace();
 			return false;
 		}
 		
-		
-		// Check the PermissionsByUser
+		return false;
+	}
+	
+	/**
+	 * Works out everything a user may do in one go, so that the rest of
+	 * their session can check permissions without the database
+	 * @param userId String - The userId of the user who has logged in
+	 * @param staffNo String - The staffNo of the employee who has logged in
+	 * @param authRole Role - The authentication level the user logged in with
+	 * @return The user's CapabilitySet, null if the grants aren't loaded or the user's department couldn't be found
+	 */
+	public CapabilitySet buildCapabilities(String userId, String staffNo, Role authRole) {
+		PermissionMatrix.Snapshot grants = matrix.getSnapshot();
+		if(grants == null) {
+			return null;
+		}
 		try {
-			for(String perm : targetPerms) {
-				if(db.checkPermissionByUser(userId, perm)) {
-					return true;
+			return new CapabilitySet(grants, userId, staffNo, authRole, db.getDepartmentId(staffNo), matrix.getRequestGrants());
+		} catch(SQLException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Makes sure a CapabilitySet reflects the current grants and the user's
+	 * current department. The department comes from the department cache,
+	 * which is invalidated whenever an Employee record is written, so moving
+	 * the user to another department takes effect on their next check.
+	 * @param current CapabilitySet - The capabilities built earlier
+	 * @return The same CapabilitySet if neither has changed since it was built, otherwise a new one (or null as buildCapabilities())
+	 */
+	public CapabilitySet refreshCapabilities(CapabilitySet current) {
+		PermissionMatrix.Snapshot grants = matrix.getSnapshot();
+		if(grants != null && grants.getVersion() == current.getVersion()) {
+			try {
+				if(db.getDepartmentId(current.getStaffNo()) == current.getDepartmentId()) {
+					return current;
+				}
+			} catch(SQLException e) {
+				e.printStackTrace();
+				return null; // Fall back to checking the database rather than trust a possibly stale department
+			}
+		}
+		return buildCapabilities(current.getUserId(), current.getStaffNo(), current.getRole());
+	}
+	
+	/**
+	 * Checks whether the given user may do an action to each of a list of
+	 * records, for screens which show many records at once. The user's
+	 * department is only looked up once for the whole list, and records
+	 * of the same type belonging to the same employee are only checked once
+	 * when the database has to be asked.
+	 * @param userId String - The userId of the user who is attempting the action
+	 * @param staffNo String - The staffNo of the employee who is attempting the action
+	 * @param authRole Role - The selected authentication level of the current user
+	 * @param action ActionType - The action that is being attempted
+	 * @param targetRecords List<Record> - The records that are being targeted by this action
+	 * @return BitSet with the index of every permitted record set, empty if the check couldn't be made
+	 */
+	public BitSet checkPermissions(String userId, String staffNo, Role authRole, ActionType action, List<Record> targetRecords) {
+		BitSet permitted = new BitSet(targetRecords.size());
+		if(targetRecords.isEmpty()) {
+			return permitted;
+		}
+		
+		// Taken once so every record is checked against the same grants
+		PermissionMatrix.Snapshot grants = matrix.getSnapshot();
+		if(grants != null) {
+			int employeeDepartment;
+			try {
+				employeeDepartment = db.getDepartmentId(staffNo);
+			} catch(SQLException e) {
+				e.printStackTrace();
+				return permitted;
+			}
+			PermissionMatrix.Grants roleGrants = grants.forRole(authRole);
+			PermissionMatrix.Grants userGrants = grants.forUser(userId);
+			PermissionMatrix.Grants departmentGrants = grants.forDepartment(employeeDepartment);
+			PermissionMatrix.Grants requestGrants = matrix.getRequestGrants().forUser(userId);
+			for(int i=0; i < targetRecords.size(); i++) {
+				Record target = targetRecords.get(i);
+				RecordType recordType = target.getRecordType();
+				String targetEmployeeId = (String) target.getValue("employeeId");
+				boolean self = targetEmployeeId != null && targetEmployeeId.equals(staffNo);
+				if(roleGrants.allows(recordType, action, self, targetEmployeeId)
+						|| userGrants.allows(recordType, action, self, targetEmployeeId)
+						|| departmentGrants.allows(recordType, action, self, targetEmployeeId)
+						|| requestGrants.allows(recordType, action, self, targetEmployeeId)) {
+					permitted.set(i);
 				}
 			}
+			return permitted;
+		}
+		
+		// Without the matrix each distinct record type and employee costs a query, so only check each once
+		HashMap<String, Boolean> decided = new HashMap<>();
+		for(int i=0; i < targetRecords.size(); i++) {
+			Record target = targetRecords.get(i);
+			String key = target.getRecordType().name() + ":" + target.getValue("employeeId");
+			Boolean allowed = decided.get(key);
+			if(allowed == null) {
+				ArrayList<String> targetPerms = generatePermissionStrings(userId, staffNo, authRole, action, target);
+				allowed = hasPermissionInDatabase(userId, staffNo, authRole, targetPerms);
+				decided.put(key, allowed);
+			}
+			if(allowed) {
+				permitted.set(i);
+			}
+		}
+		return permitted;
+	}
+	
+	/**
+	 * Filters a list of records down to those the given user may do an action to
+	 * @see #checkPermissions(String, String, Role, ActionType, List)
+	 * @param userId String - The userId of the user who is attempting the action
+	 * @param staffNo String - The staffNo of the employee who is attempting the action
+	 * @param authRole Role - The selected authentication level of the current user
+	 * @param action ActionType - The action that is being attempted
+	 * @param targetRecords List<Record> - The records that are being targeted by this action
+	 * @return List<Record> of the permitted records, in their original order
+	 */
+	public List<Record> filterPermitted(String userId, String staffNo, Role authRole, ActionType action, List<Record> targetRecords) {
+		BitSet permitted = checkPermissions(userId, staffNo, authRole, action, targetRecords);
+		ArrayList<Record> results = new ArrayList<>(permitted.cardinality());
+		for(int i = permitted.nextSetBit(0); i >= 0; i = permitted.nextSetBit(i + 1)) {
+			results.add(targetRecords.get(i));
+		}
+		return results;
+	}
+	
+	/**
+	 * Checks the permission tables in the database directly, used when
+	 * the permission matrix hasn't been loaded. Every table is checked
+	 * for every permission string in a single query.
+	 * @param userId String - The userId of the user who is attempting the action
+	 * @param staffNo String - The staffNo of the employee who is attempting the action
+	 * @param authRole Role - The selected authentication level of the current user
+	 * @param targetPerms ArrayList<String> - The permission strings which would allow the action
+	 * @return True if any of the permissions is granted, false otherwise
+	 */
+	private boolean hasPermissionInDatabase(String userId, String staffNo, Role authRole, ArrayList<String> targetPerms) {
+		try {
+			return db.checkPermissionAny(userId, staffNo, authRole, targetPerms);
 		} catch(SQLException e) {
 			e.printStackTrace();
 			return false;
 		}
-		
-		// TODO: Check for PermissionsByRequest
-		
-		return false;
 	}
 	
 	/**
@@ -118,8 +264,8 @@ public class PermissionHandler {
 			basePerm += actionName;
 			basePerm += ".";
 			
-			HashMap<String, Object> record = targetRecord.getRecordAsMap();
-			if(record.get("employeeId") != null && record.get("employeeId").equals(staffNo)) {
+			Object recordEmployee = targetRecord.getValue("employeeId");
+			if(recordEmployee != null && recordEmployee.equals(staffNo)) {
 				String selfPerm = basePerm + "self";
 				results.add(selfPerm);
 			}
@@ -127,7 +273,7 @@ public class PermissionHandler {
 			String allPerm = basePerm + "*";
 			results.add(allPerm);
 
-			String targetEmployeeId = (String) record.get("employeeId");
+			String targetEmployeeId = (String) recordEmployee;
 			if(targetEmployeeId != null) {
 				String directPerm = basePerm + targetEmployeeId;
 				results.add(directPerm);
@@ -0,0 +1,224 @@
+package yuconz23d;
+
+import java.util.HashMap;
+
+/**
+ * Encodes permissions as single long values, so that checking one doesn't
+ * need to build its "records.&lt;record&gt;.&lt;action&gt;.&lt;scope&gt;" string.
+ *
+ * A key packs together (from the most significant bit down):
+ *   6 bits - the RecordType's ordinal
+ *   4 bits - the ActionType's ordinal
+ *   2 bits - the scope, see SCOPE_NONE, SCOPE_SELF, SCOPE_ALL and SCOPE_SPECIFIC
+ *   5 bits - the number of digits in the employee ID (so leading zeros are kept)
+ *  45 bits - the employee ID as a number
+ * leaving the top two bits clear, so a valid key is never negative.
+ *
+ * Only permissions whose record and action are known, and whose employee ID
+ * (if any) is made of at most 13 digits, can be encoded. Everything else
+ * must be checked as a string. The string form is still what's stored in
+ * the database, parse() and toString() convert between the two.
+ * Wildcard permissions such as "records.*.view.self" can't be encoded
+ * either, those are matched by a PermissionTrie instead.
+ */
+public final class PermissionKey {
+	/** Returned when a permission can't be encoded */
+	public static final long INVALID = -1L;
+
+	/** The permission has no scope, e.g. records.personaldetails.create */
+	public static final int SCOPE_NONE = 0;
+	/** The permission applies to the user's own records, e.g. records.personaldetails.view.self */
+	public static final int SCOPE_SELF = 1;
+	/** The permission applies to everyone's records, e.g. records.personaldetails.view.* */
+	public static final int SCOPE_ALL = 2;
+	/** The permission applies to one employee's records, e.g. records.personaldetails.view.323024 */
+	public static final int SCOPE_SPECIFIC = 3;
+
+	private static final int MAX_DIGITS = 13;
+	private static final int ID_BITS = 45;
+	private static final int DIGITS_SHIFT = ID_BITS;
+	private static final int SCOPE_SHIFT = DIGITS_SHIFT + 5;
+	private static final int ACTION_SHIFT = SCOPE_SHIFT + 2;
+	private static final int TYPE_SHIFT = ACTION_SHIFT + 4;
+	private static final long ID_MASK = (1L << ID_BITS) - 1;
+
+	private static final String PREFIX = "records.";
+	private static final RecordType[] recordTypes = RecordType.values();
+	private static final ActionType[] actionTypes = ActionType.values();
+	private static final String[] recordNames = new String[recordTypes.length];
+	private static final String[] actionNames = new String[actionTypes.length];
+	private static final HashMap<String, RecordType> recordsByName = new HashMap<>();
+	private static final HashMap<String, ActionType> actionsByName = new HashMap<>();
+
+	// This block prepares the names used within permission strings, matching PermissionHandler.generatePermissionStrings()
+	static {
+		for(RecordType recordType : recordTypes) {
+			String name = recordType.toString().toLowerCase().replace(" ", "");
+			recordNames[recordType.ordinal()] = name;
+			recordsByName.put(name, recordType);
+		}
+		for(ActionType actionType : actionTypes) {
+			String name = actionType.toString().toLowerCase();
+			actionNames[actionType.ordinal()] = name;
+			actionsByName.put(name, actionType);
+		}
+	}
+
+	private PermissionKey() {
+	}
+
+	/**
+	 * Encodes a permission which has no employee ID
+	 * @param recordType The type of record the permission is for
+	 * @param action The action the permission allows
+	 * @param scope SCOPE_NONE, SCOPE_SELF or SCOPE_ALL
+	 * @return The encoded key
+	 */
+	public static long of(RecordType recordType, ActionType action, int scope) {
+		return ((long) recordType.ordinal() << TYPE_SHIFT)
+				| ((long) action.ordinal() << ACTION_SHIFT)
+				| ((long) scope << SCOPE_SHIFT);
+	}
+
+	/**
+	 * Encodes a permission for one specific employee's records, without allocating
+	 * @param recordType The type of record the permission is for
+	 * @param action The action the permission allows
+	 * @param employeeId The employee the permission applies to
+	 * @return The encoded key, INVALID if the employee ID isn't made of at most 13 digits
+	 */
+	public static long forEmployee(RecordType recordType, ActionType action, String employeeId) {
+		int digits = employeeId.length();
+		if(digits == 0 || digits > MAX_DIGITS) {
+			return INVALID;
+		}
+		long id = 0;
+		for(int i=0; i < digits; i++) {
+			char c = employeeId.charAt(i);
+			if(c < '0' || c > '9') {
+				return INVALID;
+			}
+			id = id * 10 + (c - '0');
+		}
+		return of(recordType, action, SCOPE_SPECIFIC) | ((long) digits << DIGITS_SHIFT) | id;
+	}
+
+	/**
+	 * Encodes a permission string such as "records.annualreview.view.*"
+	 * @param permission The permission string
+	 * @return The encoded key, INVALID if the string can't be encoded
+	 */
+	public static long parse(String permission) {
+		if(permission == null || !permission.startsWith(PREFIX)) {
+			return INVALID;
+		}
+		int recordEnd = permission.indexOf('.', PREFIX.length());
+		if(recordEnd < 0) {
+			return INVALID;
+		}
+		RecordType recordType = recordsByName.get(permission.substring(PREFIX.length(), recordEnd));
+		int actionEnd = permission.indexOf('.', recordEnd + 1);
+		String actionName = actionEnd < 0 ? permission.substring(recordEnd + 1) : permission.substring(recordEnd + 1, actionEnd);
+		ActionType action = actionsByName.get(actionName);
+		if(recordType == null || action == null) {
+			return INVALID;
+		}
+		if(actionEnd < 0) {
+			return of(recordType, action, SCOPE_NONE);
+		}
+		String scope = permission.substring(actionEnd + 1);
+		switch(scope) {
+		case "self":
+			return of(recordType, action, SCOPE_SELF);
+		case "*":
+			return of(recordType, action, SCOPE_ALL);
+		default:
+			return forEmployee(recordType, action, scope);
+		}
+	}
+
+	/**
+	 * Converts a key back into its permission string
+	 * @param key A valid key
+	 * @return The permission string the key was encoded from
+	 */
+	public static String toString(long key) {
+		String permission = prefix(getRecordType(key), getActionType(key));
+		switch(getScope(key)) {
+		case SCOPE_SELF:
+			return permission + ".self";
+		case SCOPE_ALL:
+			return permission + ".*";
+		case SCOPE_SPECIFIC:
+			return permission + "." + getEmployeeId(key);
+		default:
+			return permission;
+		}
+	}
+
+	/**
+	 * Builds the start of a permission string, without any scope
+	 * @param recordType The type of record the permission is for
+	 * @param action The action the permission allows
+	 * @return String such as "records.annualreview.view"
+	 */
+	public static String prefix(RecordType recordType, ActionType action) {
+		return PREFIX + recordNames[recordType.ordinal()] + "." + actionNames[action.ordinal()];
+	}
+
+	/**
+	 * @param recordType The type of record
+	 * @return The name used for the record within permission strings, e.g. "annualreview"
+	 */
+	public static String recordName(RecordType recordType) {
+		return recordNames[recordType.ordinal()];
+	}
+
+	/**
+	 * @param action The action
+	 * @return The name used for the action within permission strings, e.g. "view"
+	 */
+	public static String actionName(ActionType action) {
+		return actionNames[action.ordinal()];
+	}
+
+	/**
+	 * @param key A valid key
+	 * @return The type of record the key's permission is for
+	 */
+	public static RecordType getRecordType(long key) {
+		return recordTypes[(int) (key >>> TYPE_SHIFT) & 0x3F];
+	}
+
+	/**
+	 * @param key A valid key
+	 * @return The action the key's permission allows
+	 */
+	public static ActionType getActionType(long key) {
+		return actionTypes[(int) (key >>> ACTION_SHIFT) & 0xF];
+	}
+
+	/**
+	 * @param key A valid key
+	 * @return The key's scope, one of the SCOPE_ constants
+	 */
+	public static int getScope(long key) {
+		return (int) (key >>> SCOPE_SHIFT) & 0x3;
+	}
+
+	/**
+	 * @param key A valid key
+	 * @return The employee ID the key's permission applies to, null unless its scope is SCOPE_SPECIFIC
+	 */
+	public static String getEmployeeId(long key) {
+		if(getScope(key) != SCOPE_SPECIFIC) {
+			return null;
+		}
+		int digits = (int) (key >>> DIGITS_SHIFT) & 0x1F;
+		StringBuilder id = new StringBuilder(Long.toString(key & ID_MASK));
+		while(id.length() < digits) {
+			id.insert(0, '0');
+		}
+		return id.toString();
+	}
+}
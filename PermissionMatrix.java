@@ -0,0 +1,366 @@
+package yuconz23d;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds every permission granted by role, department and user in memory
+ * so that permission checks don't need to query the Auth DB at all.
+ *
+ * The grants are loaded into an immutable Snapshot which is swapped in
+ * as a whole whenever the permission tables change, so a check always
+ * sees one consistent version of the grants. Changes are noticed by
+ * polling the permission tables' version number (kept up to date by
+ * triggers on the tables) in the background.
+ *
+ * Until a snapshot has been loaded getSnapshot() returns null, callers
+ * should fall back to checking the database directly in that case.
+ *
+ * Temporary grants from PermissionsByRequest are held separately by a
+ * RequestGrantRegistry, as they expire on their own. The registry is
+ * reloaded along with the snapshot.
+ */
+public class PermissionMatrix {
+	private static final long DEFAULT_POLL_INTERVAL = 5000;
+
+	private DatabaseHandler db;
+	private volatile Snapshot snapshot;
+	private RequestGrantRegistry requestGrants;
+	private ScheduledExecutorService watcher;
+
+	/**
+	 * Constructs an empty matrix, load() or startWatching() must be called to fill it
+	 * @param db The DatabaseHandler to load the grants through
+	 */
+	public PermissionMatrix(DatabaseHandler db) {
+		this.db = db;
+		this.requestGrants = new RequestGrantRegistry(db);
+	}
+
+	/**
+	 * Loads every grant from the database and swaps them in as the current snapshot
+	 * @return true when the grants were loaded, false if the database couldn't be read
+	 */
+	public synchronized boolean load() {
+		try {
+			// The version is read first, so a change made whilst loading is picked up by the next poll
+			long version = db.getPermissionVersion();
+			Snapshot loaded = new Snapshot(version, db.getAllPermissionGrants());
+			requestGrants.load();
+			snapshot = loaded;
+			return true;
+		} catch(SQLException e) {
+			System.err.println("Unable to load permissions into memory: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Reloads the grants if the permission tables have changed since they were
+	 * last loaded (or if they have never been loaded)
+	 * @return true if a new snapshot was loaded, false otherwise
+	 */
+	public boolean reloadIfChanged() {
+		Snapshot current = snapshot;
+		if(current != null) {
+			try {
+				if(db.getPermissionVersion() == current.version) {
+					return false;
+				}
+			} catch(SQLException e) {
+				System.err.println("Unable to check the permission version: " + e.getMessage());
+				return false;
+			}
+		}
+		return load();
+	}
+
+	/**
+	 * Loads the grants, if they aren't already, and starts checking for changes
+	 * to them in the background. Calling this again has no effect.
+	 */
+	public synchronized void startWatching() {
+		startWatching(DEFAULT_POLL_INTERVAL);
+	}
+
+	/**
+	 * Loads the grants, if they aren't already, and starts checking for changes
+	 * to them in the background. Calling this again has no effect.
+	 * @param intervalMillis How often to check whether the permission tables have changed
+	 */
+	public synchronized void startWatching(long intervalMillis) {
+		if(watcher != null) {
+			return;
+		}
+		if(snapshot == null) {
+			load();
+		}
+		watcher = Executors.newSingleThreadScheduledExecutor(WorkerExecutors.daemonThreads("yuconz-permissions"));
+		watcher.scheduleWithFixedDelay(this::reloadIfChanged, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		requestGrants.start();
+	}
+
+	/**
+	 * Stops checking for changes to the grants, the current snapshot is kept
+	 */
+	public synchronized void stopWatching() {
+		if(watcher != null) {
+			watcher.shutdownNow();
+			watcher = null;
+		}
+		requestGrants.stop();
+	}
+
+	/**
+	 * @return The registry of temporary, request-based grants
+	 */
+	public RequestGrantRegistry getRequestGrants() {
+		return requestGrants;
+	}
+
+	/**
+	 * Retrieves the grants that are currently loaded
+	 * @return The current Snapshot, null if the grants haven't been loaded
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * An immutable copy of every grant at one version of the permission tables
+	 */
+	public static class Snapshot {
+		private long version;
+		private Map<Integer, Grants> byRole;
+		private Map<Integer, Grants> byDepartment;
+		private Map<String, Grants> byUser;
+
+		/**
+		 * Builds a snapshot from the rows returned by DatabaseHandler.getAllPermissionGrants()
+		 * @param version The permission tables' version the rows were read at
+		 * @param grants The rows of grants
+		 */
+		private Snapshot(long version, List<LinkedHashMap<String, Object>> grants) {
+			this.version = version;
+			HashMap<Integer, Grants> roles = new HashMap<>();
+			HashMap<Integer, Grants> departments = new HashMap<>();
+			HashMap<String, Grants> users = new HashMap<>();
+			for(LinkedHashMap<String, Object> grant : grants) {
+				Object grantee = grant.get("grantee");
+				Object permName = grant.get("permName");
+				if(grantee == null || permName == null) {
+					continue;
+				}
+				// Interned since the same few permission names are granted over and over
+				String permission = permName.toString().intern();
+				switch(grant.get("grantType").toString()) {
+				case "role":
+					add(roles, toInt(grantee), permission);
+					break;
+				case "department":
+					add(departments, toInt(grantee), permission);
+					break;
+				case "user":
+					add(users, grantee.toString(), permission);
+					break;
+				}
+			}
+			this.byRole = roles;
+			this.byDepartment = departments;
+			this.byUser = users;
+		}
+
+		private static <K> void add(HashMap<K, Grants> grants, K grantee, String permission) {
+			Grants granted = grants.get(grantee);
+			if(granted == null) {
+				granted = new Grants();
+				grants.put(grantee, granted);
+			}
+			granted.add(permission);
+		}
+
+		private static int toInt(Object value) {
+			if(value instanceof Number) {
+				return ((Number) value).intValue();
+			}
+			return Integer.parseInt(value.toString().trim());
+		}
+
+		/**
+		 * @return The version of the permission tables this snapshot was loaded from
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * Retrieves the permissions granted to a role
+		 * @param authRole The role to look up
+		 * @return The role's Grants, empty if it has none
+		 */
+		public Grants forRole(Role authRole) {
+			return orEmpty(byRole.get(authRole.id()));
+		}
+
+		/**
+		 * Retrieves the permissions granted to a department
+		 * @param departmentId The department to look up
+		 * @return The department's Grants, empty if it has none
+		 */
+		public Grants forDepartment(int departmentId) {
+			return orEmpty(byDepartment.get(departmentId));
+		}
+
+		/**
+		 * Retrieves the permissions individually granted to a user
+		 * @param userId The user to look up
+		 * @return The user's Grants, empty if they have none
+		 */
+		public Grants forUser(String userId) {
+			return orEmpty(byUser.get(userId));
+		}
+
+		private static Grants orEmpty(Grants grants) {
+			return grants == null ? Grants.NONE : grants;
+		}
+	}
+
+	/**
+	 * The permissions granted to one role, department or user. Permissions
+	 * which can be encoded as PermissionKeys are held in a LongHashSet so
+	 * checking them allocates nothing. The rest, including wildcard grants
+	 * such as "records.*.view.self", are matched by a PermissionTrie, which
+	 * record checks walk segment by segment without allocating either.
+	 */
+	public static class Grants {
+		static final Grants NONE = new Grants();
+
+		private LongHashSet keys = new LongHashSet();
+		private PermissionTrie patterns = new PermissionTrie();
+		private Set<String> permissions = new HashSet<>();
+
+		private Grants() {
+		}
+
+		/**
+		 * Builds a standalone set of grants
+		 * @param permissions The permission strings granted
+		 * @return The Grants holding those permissions
+		 */
+		static Grants of(Collection<String> permissions) {
+			Grants grants = new Grants();
+			for(String permission : permissions) {
+				grants.add(permission);
+			}
+			return grants;
+		}
+
+		private void add(String permission) {
+			permissions.add(permission);
+			long key = PermissionKey.parse(permission);
+			if(key == PermissionKey.INVALID) {
+				patterns.add(permission);
+			} else {
+				keys.add(key);
+			}
+		}
+
+		/**
+		 * Checks whether these grants allow an action to be done to a record,
+		 * giving the same answer as looking for any of the strings from
+		 * PermissionHandler.generatePermissionStrings()
+		 * @param recordType The type of record being targeted
+		 * @param action The action being attempted
+		 * @param self true when the record belongs to the user attempting the action
+		 * @param targetEmployeeId The employee the record belongs to, may be null
+		 * @return true if the action is allowed
+		 */
+		public boolean allows(RecordType recordType, ActionType action, boolean self, String targetEmployeeId) {
+			switch(action) {
+			case CREATE:
+				if(keys.contains(PermissionKey.of(recordType, action, PermissionKey.SCOPE_NONE))) {
+					return true;
+				}
+				return patterns.matches("records", PermissionKey.recordName(recordType), PermissionKey.actionName(action));
+			case VIEW:
+			case MODIFY:
+				if(self && keys.contains(PermissionKey.of(recordType, action, PermissionKey.SCOPE_SELF))) {
+					return true;
+				}
+				if(keys.contains(PermissionKey.of(recordType, action, PermissionKey.SCOPE_ALL))) {
+					return true;
+				}
+				if(targetEmployeeId != null && allowsEmployee(recordType, action, targetEmployeeId)) {
+					return true;
+				}
+				return !patterns.isEmpty() && patternsAllow(recordType, action, self, null);
+			default:
+				return false;
+			}
+		}
+
+		/**
+		 * Checks only the grants for one specific employee's records, ignoring
+		 * any self or all grants
+		 * @param recordType The type of record being targeted
+		 * @param action The action being attempted
+		 * @param targetEmployeeId The employee the record belongs to
+		 * @return true if the action is allowed on that employee's records
+		 */
+		public boolean allowsEmployee(RecordType recordType, ActionType action, String targetEmployeeId) {
+			long specific = PermissionKey.forEmployee(recordType, action, targetEmployeeId);
+			if(specific != PermissionKey.INVALID && keys.contains(specific)) {
+				return true;
+			}
+			return !patterns.isEmpty() && patterns.matches("records", PermissionKey.recordName(recordType),
+					PermissionKey.actionName(action), targetEmployeeId);
+		}
+
+		/**
+		 * Matches each scope the action could be allowed by against the wildcard
+		 * (and otherwise unencodable) grants
+		 */
+		private boolean patternsAllow(RecordType recordType, ActionType action, boolean self, String targetEmployeeId) {
+			String recordName = PermissionKey.recordName(recordType);
+			String actionName = PermissionKey.actionName(action);
+			if(self && patterns.matches("records", recordName, actionName, "self")) {
+				return true;
+			}
+			if(patterns.matches("records", recordName, actionName, "*")) {
+				return true;
+			}
+			return targetEmployeeId != null && patterns.matches("records", recordName, actionName, targetEmployeeId);
+		}
+
+		/**
+		 * Checks whether any of the given permission strings is granted
+		 * @param targetPerms The permission strings to look for
+		 * @return true if any of them is granted
+		 */
+		public boolean containsAny(List<String> targetPerms) {
+			for(String permission : targetPerms) {
+				if(permissions.contains(permission) || patterns.matches(permission)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @return Every permission granted, as strings (unmodifiable)
+		 */
+		public Set<String> getPermissions() {
+			return Collections.unmodifiableSet(permissions);
+		}
+	}
+}
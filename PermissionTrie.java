@@ -0,0 +1,154 @@
+package yuconz23d;
+
+import java.util.HashMap;
+
+/**
+ * Matches dot separated permission paths against a set of patterns, where
+ * any segment of a pattern may be a "*" wildcard matching exactly one
+ * segment of the path. For example "records.*.view.self" matches
+ * "records.promotion.view.self", and "records.promotion.*.*" matches
+ * every view and modify permission for promotions.
+ *
+ * Patterns are stored as a trie of their segments. At each level matching
+ * may follow both the literal segment and the wildcard, so the worst case
+ * visits 2^depth nodes. Permission paths are at most four segments deep,
+ * so that's never more than 16, however many patterns have been added.
+ * The three and four segment forms of matches() walk the trie without
+ * splitting the path or allocating an array.
+ *
+ * Not thread safe, tries should be filled before they are shared and
+ * only read afterwards.
+ */
+public class PermissionTrie {
+	private static final String WILDCARD = "*";
+
+	private Node root = new Node();
+	private int size;
+
+	/**
+	 * Adds a pattern to the trie
+	 * @param pattern The dot separated pattern, e.g. "records.*.view.self"
+	 */
+	public void add(String pattern) {
+		Node node = root;
+		for(String segment : split(pattern)) {
+			node = node.child(segment);
+		}
+		if(!node.terminal) {
+			node.terminal = true;
+			size++;
+		}
+	}
+
+	/**
+	 * Checks whether a permission path matches any pattern in the trie
+	 * @param path The dot separated permission, e.g. "records.promotion.view.323024"
+	 * @return true if any pattern matches the whole path
+	 */
+	public boolean matches(String path) {
+		return matches(split(path));
+	}
+
+	/**
+	 * Checks whether a permission path, already split into its segments,
+	 * matches any pattern in the trie
+	 * @param segments The path's segments, e.g. {"records", "promotion", "view", "323024"}
+	 * @return true if any pattern matches the whole path
+	 */
+	public boolean matches(String[] segments) {
+		return size > 0 && matches(root, segments, 0);
+	}
+
+	/**
+	 * Checks whether a three segment permission path matches any pattern in the trie
+	 * @return true if any pattern matches the whole path, e.g. "records", "promotion", "view"
+	 */
+	public boolean matches(String first, String second, String third) {
+		return size > 0 && matches(root, first, second, third, null, 3, 0);
+	}
+
+	/**
+	 * Checks whether a four segment permission path matches any pattern in the trie
+	 * @return true if any pattern matches the whole path, e.g. "records", "promotion", "view", "323024"
+	 */
+	public boolean matches(String first, String second, String third, String fourth) {
+		return size > 0 && matches(root, first, second, third, fourth, 4, 0);
+	}
+
+	private static boolean matches(Node node, String[] segments, int depth) {
+		if(depth == segments.length) {
+			return node.terminal;
+		}
+		if(node.children != null) {
+			Node literal = node.children.get(segments[depth]);
+			if(literal != null && matches(literal, segments, depth + 1)) {
+				return true;
+			}
+		}
+		return node.wildcard != null && matches(node.wildcard, segments, depth + 1);
+	}
+
+	private static boolean matches(Node node, String first, String second, String third, String fourth, int length, int depth) {
+		if(depth == length) {
+			return node.terminal;
+		}
+		if(node.children != null) {
+			String segment = depth == 0 ? first : depth == 1 ? second : depth == 2 ? third : fourth;
+			Node literal = node.children.get(segment);
+			if(literal != null && matches(literal, first, second, third, fourth, length, depth + 1)) {
+				return true;
+			}
+		}
+		return node.wildcard != null && matches(node.wildcard, first, second, third, fourth, length, depth + 1);
+	}
+
+	/**
+	 * @return The number of patterns in the trie
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return true if the trie holds no patterns
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Splits a permission into its dot separated segments
+	 * @param path The permission
+	 * @return Array of the permission's segments
+	 */
+	private static String[] split(String path) {
+		return path.split("\\.", -1);
+	}
+
+	/**
+	 * One segment of the trie, holding the literal segments and wildcard that may follow it
+	 */
+	private static class Node {
+		private HashMap<String, Node> children;
+		private Node wildcard;
+		private boolean terminal;
+
+		private Node child(String segment) {
+			if(WILDCARD.equals(segment)) {
+				if(wildcard == null) {
+					wildcard = new Node();
+				}
+				return wildcard;
+			}
+			if(children == null) {
+				children = new HashMap<>();
+			}
+			Node child = children.get(segment);
+			if(child == null) {
+				child = new Node();
+				children.put(segment, child);
+			}
+			return child;
+		}
+	}
+}
@@ -1,16 +1,23 @@
 package yuconz23d;
 import java.util.LinkedHashMap;
-import java.util.Set;
+import java.util.Map;
 
 /**
  * Used to represent all database records in a
  * uniform format that can be accessed by methods 
  * without always needing to query the DB for it
  *
+ * Values are stored as a plain array, with the position of each
+ * column given by a RecordSchema that is shared between every
+ * record of the same type. The map based methods remain for
+ * code which prefers to work with <ColumnName, value> pairs.
+ *
  */
 public class Record {
 	private RecordType recordType;
-	private LinkedHashMap<String, Object> recordValues;
+	private RecordSchema schema;
+	private Object[] values;
+	private LinkedHashMap<String, Object> mapView; // Built on demand by getRecordAsMap()
 	
 	/**
 	 * Instantiate an instance of Record, given it's type and
@@ -20,7 +27,38 @@ public class Record {
 	 */
 	public Record(RecordType recordType, LinkedHashMap<String, Object> recordValues){
 		this.recordType = recordType;
-		this.recordValues = recordValues;
+		if(recordValues != null) {
+			this.schema = RecordSchema.forColumns(recordType, recordValues.keySet());
+			this.values = recordValues.values().toArray();
+		}
+	}
+	
+	/**
+	 * Instantiate an instance of Record from an array of values laid
+	 * out according to the given schema, this is how records are read
+	 * from the database
+	 * @param schema The schema describing which column each value belongs to
+	 * @param values The values of this record, in schema order (not copied)
+	 */
+	public Record(RecordSchema schema, Object[] values) {
+		if(values != null && values.length != schema.size()) {
+			throw new IllegalArgumentException("Expected " + schema.size() + " values but got " + values.length);
+		}
+		this.recordType = schema.getRecordType();
+		this.schema = values == null ? null : schema;
+		this.values = values;
+	}
+	
+	/**
+	 * Makes a copy of this record which can be changed without affecting
+	 * this one. The values themselves (Strings and numbers) are shared.
+	 * @return A new Record with the same schema and values
+	 */
+	public Record copy() {
+		if(values == null) {
+			return new Record(recordType, (LinkedHashMap<String, Object>) null);
+		}
+		return new Record(schema, values.clone());
 	}
 	
 	/**
@@ -32,13 +70,64 @@ public class Record {
 		return recordType;
 	}
 	
+	/**
+	 * Retrieves the schema describing this record's values
+	 * @return The RecordSchema of this record, null if the record has no values
+	 */
+	public RecordSchema getSchema() {
+		return schema;
+	}
+	
+	/**
+	 * Checks whether this record holds any values, placeholder records
+	 * used for permission checks don't
+	 * @return true when the record has values, false otherwise
+	 */
+	public boolean hasValues() {
+		return values != null;
+	}
+	
+	/**
+	 * Retrieves a single value of this record by column name
+	 * @param columnName The name of the column to retrieve
+	 * @return The column's value, null if the record doesn't have this column (or has no values)
+	 */
+	public Object getValue(String columnName) {
+		if(values == null) {
+			return null;
+		}
+		int index = schema.indexOf(columnName);
+		return index < 0 ? null : values[index];
+	}
+	
+	/**
+	 * Retrieves a single value of this record by its position in the schema
+	 * @param index The position of the column in getSchema()
+	 * @return The column's value
+	 */
+	public Object getValue(int index) {
+		return values[index];
+	}
+	
 	/**
 	 * Returns a LinkedHashMap of Sting:Object mappings for
-	 * all columns of the given record
-	 * @return LinkedHashMap<String, Object> containing all columns of the record as <ColumName, ColumnValue>
+	 * all columns of the given record. The map is built the first time
+	 * it is asked for, changes should be made through updateValue(s)
+	 * rather than to the map itself.
+	 * @return LinkedHashMap<String, Object> containing all columns of the record as <ColumName, ColumnValue>, null if the record has no values
 	 */
 	public LinkedHashMap<String, Object> getRecordAsMap() {
-		return recordValues;
+		if(values == null) {
+			return null;
+		}
+		if(mapView == null) {
+			LinkedHashMap<String, Object> map = new LinkedHashMap<>(values.length * 2);
+			for(int i=0; i < values.length; i++) {
+				map.put(schema.getColumnName(i), values[i]);
+			}
+			mapView = map;
+		}
+		return mapView;
 	}
 	
 	/**
@@ -48,8 +137,10 @@ public class Record {
 	 * @return True when the columnName given is found and updated, false otherwise
 	 */
 	public boolean updateValue(String columnName, Object newValue) {
-		if(recordValues.containsKey(columnName)) {
-			recordValues.put(columnName, newValue);
+		int index = values == null ? -1 : schema.indexOf(columnName);
+		if(index >= 0) {
+			values[index] = newValue;
+			mapView = null;
 			return true;
 		}
 		return false;
@@ -64,13 +155,23 @@ public class Record {
 	 * @return True if the keySets matched and the values were updated, false otherwise
 	 */
 	public boolean updateValues(LinkedHashMap<String, Object> newValues) {
-		Set<String> newValuesKeys = newValues.keySet();
-		Set<String> recordKeys = recordValues.keySet();
-		if(newValuesKeys.equals(recordKeys)) {
-			this.recordValues = newValues;
-			return true;
+		if(values == null) {
+			return false;
 		}
-		return false;
+		if(newValues.size() != schema.size()) {
+			return false;
+		}
+		Object[] updated = new Object[schema.size()];
+		for(Map.Entry<String, Object> entry : newValues.entrySet()) {
+			int index = schema.indexOf(entry.getKey());
+			if(index < 0) {
+				return false; // The keySets don't match
+			}
+			updated[index] = entry.getValue();
+		}
+		this.values = updated;
+		mapView = null;
+		return true;
 	}
 }
 
@@ -0,0 +1,266 @@
+package yuconz23d;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A bounded, in-memory cache of the results of retrieving records,
+ * keyed by the employee the records belong to and their RecordType.
+ * HR staff tend to re-open the same employees' records again and again,
+ * so answering those from memory saves a database round trip each time.
+ *
+ * Entries are evicted when the cache is full (least recently used first)
+ * and expire after a fixed time to live. Whoever writes records must
+ * invalidate the matching entries, YuconzApp does this for every record
+ * created or updated through it.
+ *
+ * Records are mutable, so the cache keeps its own copies and hands each
+ * caller a fresh copy. One session editing the record it was given can
+ * never change what another session sees.
+ *
+ * All methods are synchronized, the cache is shared by every session.
+ */
+public class RecordCache {
+	// Stands in for "no records found", so those lookups are cached too
+	private static final Object NO_RECORD = new Object();
+
+	private int maxEntries;
+	private long ttlMillis;
+	private LinkedHashMap<Key, Entry> entries;
+	private long generation;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long expirations;
+
+	/**
+	 * Constructs an empty cache
+	 * @param maxEntries The maximum number of (employee, RecordType) results to hold
+	 * @param ttlMillis How long a result may be served from the cache after it was loaded
+	 */
+	public RecordCache(int maxEntries, long ttlMillis) {
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		// Access ordered, so the eldest entry is always the least recently viewed
+		this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+				if(size() > RecordCache.this.maxEntries) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Looks up a cached result
+	 * @param employeeId The employee whose records were retrieved
+	 * @param recordType The type of record(s) retrieved
+	 * @return A Lookup which either holds the cached value or can be used to store a freshly loaded one
+	 */
+	public synchronized Lookup get(String employeeId, RecordType recordType) {
+		Key key = new Key(employeeId, recordType);
+		Entry entry = entries.get(key);
+		if(entry != null) {
+			if(System.currentTimeMillis() - entry.loadedAt <= ttlMillis) {
+				hits++;
+				return new Lookup(key, true, entry.value == NO_RECORD ? null : copyOf(entry.value), generation);
+			}
+			entries.remove(key);
+			expirations++;
+		}
+		misses++;
+		return new Lookup(key, false, null, generation);
+	}
+
+	/**
+	 * Stores a result that was loaded after a missed lookup. The result is
+	 * dropped if anything was invalidated whilst it was being loaded, as it
+	 * may have been read before that write.
+	 * @param lookup The missed Lookup returned by get()
+	 * @param value The value that was loaded, null when no records were found
+	 */
+	public synchronized void put(Lookup lookup, Object value) {
+		if(lookup.generation != generation) {
+			return;
+		}
+		entries.put(lookup.key, new Entry(value == null ? NO_RECORD : copyOf(value), System.currentTimeMillis()));
+	}
+
+	/**
+	 * Copies a Record, or a List<Record> along with each Record in it
+	 */
+	private static Object copyOf(Object value) {
+		if(value instanceof Record) {
+			return ((Record) value).copy();
+		}
+		if(value instanceof List) {
+			List<?> records = (List<?>) value;
+			ArrayList<Object> copies = new ArrayList<>(records.size());
+			for(Object record : records) {
+				copies.add(copyOf(record));
+			}
+			return copies;
+		}
+		return value;
+	}
+
+	/**
+	 * Forgets the cached records of one type for one employee
+	 * @param employeeId The employee whose records changed
+	 * @param recordType The type of record that changed
+	 */
+	public synchronized void invalidate(String employeeId, RecordType recordType) {
+		generation++;
+		entries.remove(new Key(employeeId, recordType));
+	}
+
+	/**
+	 * Forgets every cached record of one type, used when a write may have
+	 * moved records between employees
+	 * @param recordType The type of record that changed
+	 */
+	public synchronized void invalidateAll(RecordType recordType) {
+		generation++;
+		Iterator<Key> it = entries.keySet().iterator();
+		while(it.hasNext()) {
+			if(it.next().recordType == recordType) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Forgets everything held in the cache
+	 */
+	public synchronized void clear() {
+		generation++;
+		entries.clear();
+	}
+
+	/**
+	 * @return The number of results currently cached
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return The number of lookups answered from the cache
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return The number of lookups which had to go to the database
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return The number of results thrown out to make room for others
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return The number of results thrown out because they were too old
+	 */
+	public synchronized long getExpirations() {
+		return expirations;
+	}
+
+	/**
+	 * Returns the cache's statistics as a one-line summary
+	 */
+	public synchronized String toString() {
+		return "RecordCache[size=" + entries.size() + "/" + maxEntries
+				+ " hits=" + hits
+				+ " misses=" + misses
+				+ " evictions=" + evictions
+				+ " expirations=" + expirations + "]";
+	}
+
+	/**
+	 * The result of looking a key up in the cache
+	 */
+	public static class Lookup {
+		private Key key;
+		private boolean hit;
+		private Object value;
+		private long generation;
+
+		private Lookup(Key key, boolean hit, Object value, long generation) {
+			this.key = key;
+			this.hit = hit;
+			this.value = value;
+			this.generation = generation;
+		}
+
+		/**
+		 * @return true when the value was found in the cache
+		 */
+		public boolean isHit() {
+			return hit;
+		}
+
+		/**
+		 * @return The cached Record, List<Record> or null (no records), only meaningful on a hit
+		 */
+		public Object getValue() {
+			return value;
+		}
+	}
+
+	/**
+	 * Identifies the records of one type belonging to one employee
+	 */
+	private static class Key {
+		private String employeeId;
+		private RecordType recordType;
+
+		private Key(String employeeId, RecordType recordType) {
+			this.employeeId = employeeId;
+			this.recordType = recordType;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if(!(other instanceof Key)) {
+				return false;
+			}
+			Key otherKey = (Key) other;
+			return recordType == otherKey.recordType && Objects.equals(employeeId, otherKey.employeeId);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * recordType.hashCode() + Objects.hashCode(employeeId);
+		}
+	}
+
+	/**
+	 * A cached value and when it was loaded
+	 */
+	private static class Entry {
+		private Object value;
+		private long loadedAt;
+
+		private Entry(Object value, long loadedAt) {
+			this.value = value;
+			this.loadedAt = loadedAt;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package yuconz23d;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the rows of a query one Record at a time, reading each
+ * row from the database only when it is asked for. This allows very large
+ * sets of records to be processed without holding them all in memory.
+ *
+ * Values of encrypted columns are decrypted as each row is read, checked
+ * against the row's record key so a value moved from another record is
+ * refused. Every thread decrypts with its own Cipher, so cursors being
+ * read on several threads at once don't hold each other up.
+ *
+ * The cursor owns the connection its query was run on. The connection is
+ * released as soon as the last row has been read, or when close() is
+ * called, so cursors should always be closed if they aren't read to the end.
+ */
+public class RecordCursor implements Iterator<Record>, AutoCloseable {
+	private RecordType recordType;
+	private ResultSet results;
+	private Connection conn;
+	private RecordSchema schema;
+	private WritePlan plan;
+	private int[] keyIndexes;
+	private boolean hasNextRow;
+	private boolean advanced;
+	private boolean closed;
+
+	/**
+	 * Constructs a cursor over the results of a query which has already been run
+	 * @param recordType The type of record each row represents
+	 * @param results The results of the query, positioned before the first row
+	 * @param conn The connection the query was run on, closed along with the cursor
+	 * @throws SQLException When the result set's columns couldn't be read
+	 */
+	public RecordCursor(RecordType recordType, ResultSet results, Connection conn) throws SQLException {
+		this.recordType = recordType;
+		this.results = results;
+		this.conn = conn;
+
+		// Column names are the same for every row, so the schema is only worked out once
+		ResultSetMetaData metaData = results.getMetaData();
+		String[] columnNames = new String[metaData.getColumnCount()];
+		for(int i=0; i < columnNames.length; i++) {
+			columnNames[i] = metaData.getColumnName(i + 1);
+		}
+		this.schema = RecordSchema.forColumns(recordType, columnNames);
+		this.plan = WritePlan.forType(recordType);
+		String[] keyColumns = plan.getKeyColumns();
+		this.keyIndexes = new int[keyColumns.length];
+		for(int i=0; i < keyColumns.length; i++) {
+			keyIndexes[i] = schema.indexOf(keyColumns[i]);
+		}
+	}
+
+	/**
+	 * Checks whether there is another record to be read, moving the
+	 * underlying result set forward when needed
+	 * @return true when there is another record, false once every row has been read
+	 * @throws IllegalStateException When the next row couldn't be read from the database
+	 */
+	@Override
+	public boolean hasNext() {
+		if(closed) {
+			return false;
+		}
+		if(!advanced) {
+			try {
+				hasNextRow = results.next();
+			} catch(SQLException e) {
+				close();
+				throw new IllegalStateException("Failed to read the next " + recordType + " record", e);
+			}
+			advanced = true;
+			if(!hasNextRow) {
+				close(); // Finished with the connection, give it back straight away
+			}
+		}
+		return hasNextRow;
+	}
+
+	/**
+	 * Reads the next row as a Record
+	 * @return The next Record
+	 * @throws NoSuchElementException When every row has already been read
+	 * @throws IllegalStateException When the row couldn't be read from the database
+	 */
+	@Override
+	public Record next() {
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		advanced = false;
+		try {
+			Object[] row = new Object[schema.size()];
+			for(int i=0; i < row.length; i++) {
+				row[i] = results.getObject(i + 1);
+			}
+			if(schema.hasEncryptedColumns()) {
+				decrypt(row);
+			}
+			return new Record(schema, row);
+		} catch(SQLException | IllegalStateException e) {
+			close();
+			throw new IllegalStateException("Failed to read a " + recordType + " record", e);
+		}
+	}
+
+	/**
+	 * Decrypts the values of a row's encrypted columns in place
+	 */
+	private void decrypt(Object[] row) {
+		Encryption encryption = Encryption.getShared();
+		Object[] keyValues = null;
+		for(int i=0; i < row.length; i++) {
+			if(schema.isEncrypted(i) && row[i] instanceof String) {
+				if(keyValues == null) {
+					// Read before any value is replaced, the key columns themselves are never encrypted
+					keyValues = new Object[keyIndexes.length];
+					for(int k=0; k < keyIndexes.length; k++) {
+						keyValues[k] = keyIndexes[k] < 0 ? null : row[keyIndexes[k]];
+					}
+				}
+				row[i] = encryption.decrypt((String) row[i], plan.encryptionContext(schema.getColumnName(i), keyValues));
+			}
+		}
+	}
+
+	/**
+	 * Closes the result set and returns the connection to its pool.
+	 * Calling this more than once has no effect.
+	 */
+	@Override
+	public void close() {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		try {
+			results.close();
+		} catch(SQLException e) {
+			System.err.println("Failed to close record cursor: " + e.getMessage());
+		} finally {
+			try {
+				conn.close();
+			} catch(SQLException e) {
+				System.err.println("Failed to release record cursor connection: " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package yuconz23d;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Describes the columns held by a Record and the position of each one
+ * within the Record's array of values. Records of the same type share
+ * a single schema, so looking a value up by column name is one hash
+ * lookup on a shared table rather than every row carrying its own map.
+ *
+ * Each RecordType has a schema built from its Column definitions. Rows
+ * whose columns don't line up exactly with the RecordType (for example
+ * a form which leaves hidden columns out) get a schema of their own.
+ * Schemas are immutable once built.
+ */
+public class RecordSchema {
+	private static final EnumMap<RecordType, RecordSchema> typeSchemas = new EnumMap<>(RecordType.class);
+	private static final ConcurrentHashMap<RecordType, RecordSchema> lastDerived = new ConcurrentHashMap<>();
+
+	// This block prepares the schema of every record type from its columns
+	static {
+		for(RecordType recordType : RecordType.values()) {
+			String[] names = new String[recordType.getColumns().size()];
+			for(int i=0; i < names.length; i++) {
+				names[i] = recordType.getColumns().get(i).getName();
+			}
+			typeSchemas.put(recordType, new RecordSchema(recordType, names));
+		}
+	}
+
+	private RecordType recordType;
+	private String[] columnNames;
+	private HashMap<String, Integer> columnIndexes;
+	private boolean[] encrypted;
+	private boolean anyEncrypted;
+
+	/**
+	 * Builds a schema, use of() or forColumns() rather than creating them directly
+	 * @param recordType The type of record this schema describes
+	 * @param columnNames The names of the columns, in value order
+	 */
+	private RecordSchema(RecordType recordType, String[] columnNames) {
+		this.recordType = recordType;
+		this.columnNames = columnNames;
+		this.columnIndexes = new HashMap<>(columnNames.length * 2);
+		for(int i=0; i < columnNames.length; i++) {
+			columnIndexes.put(columnNames[i], i);
+		}
+
+		this.encrypted = new boolean[columnNames.length];
+		for(Column column : recordType.getColumns()) {
+			Integer index = columnIndexes.get(column.getName());
+			if(index != null && column.isEncrypted()) {
+				encrypted[index] = true;
+				anyEncrypted = true;
+			}
+		}
+	}
+
+	/**
+	 * Retrieves the shared schema built from a RecordType's columns
+	 * @param recordType The type of record
+	 * @return The schema holding every column of that type, in definition order
+	 */
+	public static RecordSchema of(RecordType recordType) {
+		return typeSchemas.get(recordType);
+	}
+
+	/**
+	 * Retrieves a schema for rows of the given type holding exactly these columns.
+	 * When the columns match the RecordType's definition the shared schema is
+	 * returned, otherwise a schema is derived for them. The most recently derived
+	 * schema of each type is remembered, so repeated queries returning the same
+	 * columns share one schema too.
+	 * @param recordType The type of record the rows represent
+	 * @param columnNames The names of the columns, in value order
+	 * @return A schema with those columns in that order
+	 */
+	public static RecordSchema forColumns(RecordType recordType, String[] columnNames) {
+		RecordSchema shared = typeSchemas.get(recordType);
+		if(Arrays.equals(shared.columnNames, columnNames)) {
+			return shared;
+		}
+		RecordSchema derived = lastDerived.get(recordType);
+		if(derived != null && Arrays.equals(derived.columnNames, columnNames)) {
+			return derived;
+		}
+		derived = new RecordSchema(recordType, columnNames.clone());
+		lastDerived.put(recordType, derived);
+		return derived;
+	}
+
+	/**
+	 * Convenience version of forColumns() for a collection of column names,
+	 * e.g. the keySet of a LinkedHashMap
+	 * @param recordType The type of record the rows represent
+	 * @param columnNames The names of the columns, in value order
+	 * @return A schema with those columns in that order
+	 */
+	public static RecordSchema forColumns(RecordType recordType, Collection<String> columnNames) {
+		return forColumns(recordType, columnNames.toArray(new String[columnNames.size()]));
+	}
+
+	/**
+	 * @return The type of record this schema describes
+	 */
+	public RecordType getRecordType() {
+		return recordType;
+	}
+
+	/**
+	 * @return The number of columns in this schema
+	 */
+	public int size() {
+		return columnNames.length;
+	}
+
+	/**
+	 * Retrieves the name of the column at a position
+	 * @param index The position of the column
+	 * @return The column's name
+	 */
+	public String getColumnName(int index) {
+		return columnNames[index];
+	}
+
+	/**
+	 * Checks whether the column at a position is encrypted in the database
+	 * @param index The position of the column
+	 * @return true if the column's values are stored encrypted
+	 */
+	public boolean isEncrypted(int index) {
+		return encrypted[index];
+	}
+
+	/**
+	 * @return true if any column in this schema is encrypted in the database
+	 */
+	public boolean hasEncryptedColumns() {
+		return anyEncrypted;
+	}
+
+	/**
+	 * Finds the position of a column within this schema
+	 * @param columnName The name of the column
+	 * @return The column's position, -1 when this schema has no such column
+	 */
+	public int indexOf(String columnName) {
+		Integer index = columnIndexes.get(columnName);
+		return index == null ? -1 : index;
+	}
+}
@@ -25,8 +25,8 @@ public enum RecordType {
 					new Column("addressTown", "Town", "[a-zA-Z]*", "Town name can only contain characters", false, true),
 					new Column("addressCounty", "County", "[a-zA-Z]*", "County can only contain characters", false, true),
 					new Column("addressPostcode", "Postcode", "[a-zA-Z_0-9]{3}[\" \"][a-zA-Z_0-9]{3}|[a-zA-Z_0-9]{3}[a-zA-Z_0-9]{3}", "Postcode must only contain numbers or characters", false, true),
-					new Column("telNo", "Telephone #", "[0-9]{8,12}", "Telephone number must be between 8-12 numbers only", false, true),
-					new Column("mobNo", "Mobile #", "[0-9]{8,12}", "Telephone number must be between 8-12 numbers only", false, true),
+					new Column("telNo", "Telephone #", "[0-9]{8,12}", "Telephone number must be between 8-12 numbers only", false, true, true),
+					new Column("mobNo", "Mobile #", "[0-9]{8,12}", "Telephone number must be between 8-12 numbers only", false, true, true),
 					new Column("emergencyContact", "Emergency Contact", "[a-zA-Z ]*", "Emergency contact can only contain characters", false, true),
 					new Column("emergencyContactNo", "Emergency Contact #", "[0-9]{8,12}", "Telephone number must be between 8-12 numbers only", false, true)
 				)),
@@ -36,8 +36,8 @@ public enum RecordType {
 					new Column("initialDepartment", "Department ID", "[1-4]", "Must be a number between 1 - 4", false, true),
 					new Column("initalRole", "Initial Role", "[1-3]", "Must be a number between 1 - 3", false, true),
 					new Column("initalSalary", "Initial Salary", "[0-9.]*", "Must contain only numbers", false, true),
-					new Column("CV", "CV", "[a-zA-Z0-9.,'\";!-]*", "CV Must contain only alphabetical, numerical or basic punctuation characters.", false, true),
-					new Column("interviewNotes", "Interview Notes", "[a-zA-Z0-9 .,'\"();!$-]*", "Interview Notes must contain only alphabetical, numerical or basic punctuation characters.", false, true),
+					new Column("CV", "CV", "[a-zA-Z0-9.,'\";!-]*", "CV Must contain only alphabetical, numerical or basic punctuation characters.", false, true, true),
+					new Column("interviewNotes", "Interview Notes", "[a-zA-Z0-9 .,'\"();!$-]*", "Interview Notes must contain only alphabetical, numerical or basic punctuation characters.", false, true, true),
 					new Column("interviewer", "Interviewer", "[0-9]{6}", "Must be a 6 digit employee ID", false, true)
 				)),
 	AnnualReview("Annual Review",
@@ -0,0 +1,306 @@
+package yuconz23d;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the temporary, request-based permission grants (the
+ * PermissionsByRequest table) in memory, for example a manager being
+ * given access to one employee's AnnualReview for 48 hours.
+ *
+ * A user's unexpired grants are found with a single map lookup. Grants
+ * are scheduled on an ExpiryWheel when they are added, and a background
+ * ticker drops them from memory as they expire, so expiry never needs to
+ * scan the grants that are still valid. Lookups also check the earliest
+ * expiry of the user's grants, so a grant is never honoured after it has
+ * expired, even between ticks.
+ *
+ * Expired rows are only deleted from the database in batches, once a
+ * minute at most. Deleting an expired grant changes nothing anyone is
+ * allowed to do, so it doesn't move the permission version either.
+ *
+ * load(), grant() and revoke() are synchronized with each other, so a
+ * grant added whilst the registry is reloading is never lost.
+ */
+public class RequestGrantRegistry {
+	private static final long TICK_MILLIS = 1000;
+	private static final long PURGE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	private DatabaseHandler db;
+	private ConcurrentHashMap<String, UserGrants> byUser = new ConcurrentHashMap<>();
+	private ExpiryWheel<RequestGrant> wheel = new ExpiryWheel<>(TICK_MILLIS, System.currentTimeMillis());
+	private ScheduledExecutorService ticker;
+	// Only touched by the ticker thread
+	private boolean purgePending;
+	private long lastPurge;
+
+	/**
+	 * Constructs an empty registry, load() must be called to fill it
+	 * @param db The DatabaseHandler through which grants are read and written
+	 */
+	public RequestGrantRegistry(DatabaseHandler db) {
+		this.db = db;
+	}
+
+	/**
+	 * Replaces the grants held in memory with the unexpired grants in the database
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public synchronized void load() throws SQLException {
+		long now = System.currentTimeMillis();
+		HashMap<String, Map<Integer, RequestGrant>> loaded = new HashMap<>();
+		for(LinkedHashMap<String, Object> row : db.getActivePermissionsByRequest(now)) {
+			RequestGrant grant = new RequestGrant(
+					((Number) row.get("requestId")).intValue(),
+					row.get("userId").toString(),
+					row.get("permName").toString(),
+					row.get("grantedBy") == null ? null : row.get("grantedBy").toString(),
+					((Number) row.get("expiresAt")).longValue());
+			Map<Integer, RequestGrant> userGrants = loaded.get(grant.userId);
+			if(userGrants == null) {
+				userGrants = new HashMap<>();
+				loaded.put(grant.userId, userGrants);
+			}
+			userGrants.put(grant.requestId, grant);
+		}
+
+		// Grants already on the wheel are simply ignored when they fire if they're gone
+		byUser.keySet().retainAll(loaded.keySet());
+		for(Map.Entry<String, Map<Integer, RequestGrant>> entry : loaded.entrySet()) {
+			UserGrants previous = byUser.put(entry.getKey(), new UserGrants(entry.getValue()));
+			for(RequestGrant grant : entry.getValue().values()) {
+				if(previous == null || !previous.grants.containsKey(grant.requestId)) {
+					wheel.schedule(grant, grant.expiresAt);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Grants a permission to a user for a limited time
+	 * @param userId The user being granted the permission
+	 * @param permission The permission being granted, e.g. "records.annualreview.view.323024"
+	 * @param grantedBy The user who granted it
+	 * @param durationMillis How long the grant lasts
+	 * @return The new grant
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public synchronized RequestGrant grant(String userId, String permission, String grantedBy, long durationMillis) throws SQLException {
+		long expiresAt = System.currentTimeMillis() + durationMillis;
+		int requestId = db.addPermissionByRequest(userId, permission, grantedBy, expiresAt);
+		RequestGrant grant = new RequestGrant(requestId, userId, permission, grantedBy, expiresAt);
+		byUser.compute(userId, (user, current) -> {
+			HashMap<Integer, RequestGrant> grants = current == null ? new HashMap<>() : new HashMap<>(current.grants);
+			grants.put(requestId, grant);
+			return new UserGrants(grants);
+		});
+		wheel.schedule(grant, expiresAt);
+		return grant;
+	}
+
+	/**
+	 * Removes a grant before it expires
+	 * @param requestId The grant to remove
+	 * @return true if the grant was found and removed, false otherwise
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public synchronized boolean revoke(int requestId) throws SQLException {
+		boolean removed = db.revokePermissionByRequest(requestId);
+		for(String userId : byUser.keySet()) {
+			forget(userId, requestId);
+		}
+		return removed;
+	}
+
+	/**
+	 * Retrieves a user's unexpired request-based grants
+	 * @param userId The user to look up
+	 * @return The user's grants, empty if they have none
+	 */
+	public PermissionMatrix.Grants forUser(String userId) {
+		if(userId == null) {
+			return PermissionMatrix.Grants.NONE;
+		}
+		UserGrants current = byUser.get(userId);
+		if(current == null) {
+			return PermissionMatrix.Grants.NONE;
+		}
+		if(current.earliestExpiry <= System.currentTimeMillis()) {
+			// Something expired since the last tick, so drop it now rather than honour it late
+			current = byUser.computeIfPresent(userId, (user, grants) -> grants.withoutExpired(System.currentTimeMillis()));
+			if(current == null) {
+				return PermissionMatrix.Grants.NONE;
+			}
+		}
+		return current.compiled;
+	}
+
+	/**
+	 * Retrieves the details of a user's unexpired request-based grants
+	 * @param userId The user to look up
+	 * @return List of the user's grants (unmodifiable)
+	 */
+	public List<RequestGrant> getGrants(String userId) {
+		UserGrants current = byUser.get(userId);
+		if(current == null) {
+			return Collections.emptyList();
+		}
+		ArrayList<RequestGrant> grants = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		for(RequestGrant grant : current.grants.values()) {
+			if(grant.expiresAt > now) {
+				grants.add(grant);
+			}
+		}
+		return Collections.unmodifiableList(grants);
+	}
+
+	/**
+	 * Starts expiring grants in the background. Calling this again has no effect.
+	 */
+	public synchronized void start() {
+		if(ticker != null) {
+			return;
+		}
+		ticker = Executors.newSingleThreadScheduledExecutor(WorkerExecutors.daemonThreads("yuconz-request-grants"));
+		ticker.scheduleWithFixedDelay(this::expire, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops expiring grants in the background
+	 */
+	public synchronized void stop() {
+		if(ticker != null) {
+			ticker.shutdownNow();
+			ticker = null;
+		}
+	}
+
+	/**
+	 * Drops every grant which has expired since the last tick from memory, and
+	 * deletes the expired rows from the database if it's time for a purge
+	 */
+	private void expire() {
+		long now = System.currentTimeMillis();
+		for(RequestGrant grant : wheel.advance(now)) {
+			forget(grant.userId, grant.requestId);
+			purgePending = true;
+		}
+		if(!purgePending || now - lastPurge < PURGE_MILLIS) {
+			return;
+		}
+		try {
+			// One DELETE for every row expired since the last purge
+			db.deleteExpiredPermissionsByRequest(now);
+			purgePending = false;
+		} catch(SQLException e) {
+			System.err.println("Unable to delete expired request grants: " + e.getMessage());
+		}
+		lastPurge = now;
+	}
+
+	private void forget(String userId, int requestId) {
+		byUser.computeIfPresent(userId, (user, current) -> {
+			if(!current.grants.containsKey(requestId)) {
+				return current;
+			}
+			HashMap<Integer, RequestGrant> grants = new HashMap<>(current.grants);
+			grants.remove(requestId);
+			return grants.isEmpty() ? null : new UserGrants(grants);
+		});
+	}
+
+	/**
+	 * One user's grants, immutable so lookups never need to lock
+	 */
+	private static class UserGrants {
+		private Map<Integer, RequestGrant> grants;
+		private PermissionMatrix.Grants compiled;
+		private long earliestExpiry;
+
+		private UserGrants(Map<Integer, RequestGrant> grants) {
+			this.grants = grants;
+			ArrayList<String> permissions = new ArrayList<>(grants.size());
+			long earliest = Long.MAX_VALUE;
+			for(RequestGrant grant : grants.values()) {
+				permissions.add(grant.permission);
+				earliest = Math.min(earliest, grant.expiresAt);
+			}
+			this.compiled = PermissionMatrix.Grants.of(permissions);
+			this.earliestExpiry = earliest;
+		}
+
+		private UserGrants withoutExpired(long now) {
+			HashMap<Integer, RequestGrant> remaining = new HashMap<>();
+			for(RequestGrant grant : grants.values()) {
+				if(grant.expiresAt > now) {
+					remaining.put(grant.requestId, grant);
+				}
+			}
+			return remaining.isEmpty() ? null : new UserGrants(remaining);
+		}
+	}
+
+	/**
+	 * A single permission granted to a user until a set time
+	 */
+	public static class RequestGrant {
+		private int requestId;
+		private String userId;
+		private String permission;
+		private String grantedBy;
+		private long expiresAt;
+
+		private RequestGrant(int requestId, String userId, String permission, String grantedBy, long expiresAt) {
+			this.requestId = requestId;
+			this.userId = userId;
+			this.permission = permission;
+			this.grantedBy = grantedBy;
+			this.expiresAt = expiresAt;
+		}
+
+		/**
+		 * @return The grant's ID in the PermissionsByRequest table
+		 */
+		public int getRequestId() {
+			return requestId;
+		}
+
+		/**
+		 * @return The user the permission is granted to
+		 */
+		public String getUserId() {
+			return userId;
+		}
+
+		/**
+		 * @return The permission granted
+		 */
+		public String getPermission() {
+			return permission;
+		}
+
+		/**
+		 * @return The user who granted the permission, null if not recorded
+		 */
+		public String getGrantedBy() {
+			return grantedBy;
+		}
+
+		/**
+		 * @return When the grant expires, in milliseconds since the epoch
+		 */
+		public long getExpiresAt() {
+			return expiresAt;
+		}
+	}
+}
@@ -0,0 +1,365 @@
+package yuconz23d;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds every logged in user's session in memory, so looking a session up
+ * by its ID or by its user is a map lookup rather than a query.
+ *
+ * Sessions expire once they haven't been used for the idle timeout, or
+ * once they are older than the absolute timeout however much they're used.
+ * A background sweeper removes expired sessions, and lookups never return
+ * one that has expired since the last sweep.
+ *
+ * Changes are written behind to the Sessions table of the Authentication
+ * DB, so sessions survive a restart without every login, logout and lookup
+ * waiting on a write. New and removed sessions are written within a second,
+ * while the time a session was last used is only written once it has moved
+ * on by a minute. Session IDs are handed out here, carrying on from the
+ * highest in the table, so this should be the only thing writing Sessions.
+ */
+public class SessionStore {
+	private static final long DEFAULT_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+	private static final long DEFAULT_ABSOLUTE_MILLIS = TimeUnit.HOURS.toMillis(12);
+	private static final long FLUSH_MILLIS = 1000;
+	private static final long SWEEP_MILLIS = TimeUnit.SECONDS.toMillis(30);
+	// How far lastAccess may drift from what's stored before it's written again
+	private static final long ACCESS_WRITE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	private static final long STOP_WAIT_MILLIS = 5000;
+
+	private DatabaseHandler db;
+	private long idleMillis;
+	private long absoluteMillis;
+	private ConcurrentHashMap<Integer, Session> byId = new ConcurrentHashMap<>();
+	private ConcurrentHashMap<String, List<Session>> byUser = new ConcurrentHashMap<>();
+	// IDs of sessions changed since the last flush, deleted if they're no longer in byId
+	private Set<Integer> dirty = ConcurrentHashMap.newKeySet();
+	private AtomicInteger lastId = new AtomicInteger();
+	// Held by flush(), separately from the store's own lock so stop() can wait for a flush in progress
+	private final Object flushLock = new Object();
+	private ScheduledExecutorService sweeper;
+	private Thread shutdownFlush;
+
+	/**
+	 * Constructs an empty store with the default timeouts of 30 minutes idle
+	 * and 12 hours absolute, load() must be called to fill it
+	 * @param db The DatabaseHandler through which sessions are read and written
+	 */
+	public SessionStore(DatabaseHandler db) {
+		this(db, DEFAULT_IDLE_MILLIS, DEFAULT_ABSOLUTE_MILLIS);
+	}
+
+	/**
+	 * Constructs an empty store, load() must be called to fill it
+	 * @param db The DatabaseHandler through which sessions are read and written
+	 * @param idleMillis How long a session lasts without being used
+	 * @param absoluteMillis How long a session lasts however much it's used
+	 */
+	public SessionStore(DatabaseHandler db, long idleMillis, long absoluteMillis) {
+		this.db = db;
+		this.idleMillis = idleMillis;
+		this.absoluteMillis = absoluteMillis;
+	}
+
+	/**
+	 * Fills the store with the unexpired sessions in the Sessions table.
+	 * Sessions saved before their creation time was recorded are treated as
+	 * starting now.
+	 * @throws SQLException When an SQL connection/transaction error occurs
+	 */
+	public synchronized void load() throws SQLException {
+		long now = System.currentTimeMillis();
+		lastId.accumulateAndGet(db.getMaxSessionId(), Math::max);
+		for(LinkedHashMap<String, Object> row : db.getAllSessions()) {
+			long createdAt = row.get("createdAt") == null ? now : ((Number) row.get("createdAt")).longValue();
+			long lastAccess = row.get("lastAccess") == null ? createdAt : ((Number) row.get("lastAccess")).longValue();
+			Session session = new Session(((Number) row.get("sessionID")).intValue(), row.get("userID").toString(),
+					((Number) row.get("authLevel")).intValue(), createdAt, lastAccess);
+			if(isExpired(session, now)) {
+				dirty.add(session.sessionId);
+			} else {
+				add(session);
+				if(row.get("createdAt") == null) {
+					dirty.add(session.sessionId);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts a new session for a user
+	 * @param userId The user who has logged in
+	 * @param authLevel The role level they logged in with
+	 * @return The new Session
+	 */
+	public Session create(String userId, int authLevel) {
+		long now = System.currentTimeMillis();
+		Session session = new Session(lastId.incrementAndGet(), userId, authLevel, now, now);
+		add(session);
+		dirty.add(session.sessionId);
+		return session;
+	}
+
+	/**
+	 * Looks a session up by its ID, counting as a use of it
+	 * @param sessionId The session to look up
+	 * @return The Session, null if there is none or it has expired
+	 */
+	public Session get(int sessionId) {
+		return touch(byId.get(sessionId));
+	}
+
+	/**
+	 * Looks up a user's most recent session, counting as a use of it
+	 * @param userId The user whose session to look up
+	 * @return The Session, null if the user has none or it has expired
+	 */
+	public Session getByUser(String userId) {
+		if(userId == null) {
+			return null;
+		}
+		List<Session> sessions = byUser.get(userId);
+		if(sessions == null || sessions.isEmpty()) {
+			return null;
+		}
+		return touch(sessions.get(sessions.size() - 1));
+	}
+
+	/**
+	 * Ends one session
+	 * @param sessionId The session to end
+	 * @return true if the session was found and ended, false otherwise
+	 */
+	public boolean destroy(int sessionId) {
+		Session session = byId.get(sessionId);
+		return session != null && remove(session);
+	}
+
+	/**
+	 * Ends every session belonging to a user
+	 * @param userId The user logging out
+	 * @return The number of sessions ended
+	 */
+	public int destroyUser(String userId) {
+		if(userId == null) {
+			return 0;
+		}
+		List<Session> sessions = byUser.get(userId);
+		if(sessions == null) {
+			return 0;
+		}
+		int removed = 0;
+		for(Session session : sessions) {
+			if(remove(session)) {
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * @return The number of sessions held, including any which expired since the last sweep
+	 */
+	public int size() {
+		return byId.size();
+	}
+
+	/**
+	 * Removes every expired session
+	 * @return The number of sessions removed
+	 */
+	public int sweep() {
+		long now = System.currentTimeMillis();
+		int removed = 0;
+		for(Session session : byId.values()) {
+			if(isExpired(session, now) && remove(session)) {
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Writes every change made since the last flush to the Sessions table.
+	 * Changes which couldn't be written are kept for the next flush. Only one
+	 * flush runs at a time, so a change is never written out of order by two
+	 * flushes racing each other.
+	 */
+	public void flush() {
+		synchronized(flushLock) {
+			if(dirty.isEmpty()) {
+				return;
+			}
+			ArrayList<Integer> flushed = new ArrayList<>();
+			ArrayList<Session> saved = new ArrayList<>();
+			ArrayList<Integer> deleted = new ArrayList<>();
+			for(Integer sessionId : dirty) {
+				dirty.remove(sessionId);
+				flushed.add(sessionId);
+				Session session = byId.get(sessionId);
+				if(session == null) {
+					deleted.add(sessionId);
+				} else {
+					session.storedAccess = session.lastAccess;
+					saved.add(session);
+				}
+			}
+			try {
+				db.writeSessions(saved, deleted);
+			} catch(SQLException e) {
+				System.err.println("Unable to save sessions: " + e.getMessage());
+				dirty.addAll(flushed);
+			}
+		}
+	}
+
+	/**
+	 * Starts sweeping and flushing in the background, and flushing once more
+	 * when the JVM shuts down. Calling this again has no effect.
+	 */
+	public synchronized void start() {
+		if(sweeper != null) {
+			return;
+		}
+		sweeper = Executors.newSingleThreadScheduledExecutor(WorkerExecutors.daemonThreads("yuconz-sessions"));
+		sweeper.scheduleWithFixedDelay(this::flush, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+		sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+		shutdownFlush = new Thread(this::flush, "yuconz-sessions-shutdown");
+		Runtime.getRuntime().addShutdownHook(shutdownFlush);
+	}
+
+	/**
+	 * Stops sweeping and flushing in the background, letting a flush already
+	 * running finish and then flushing any remaining changes
+	 */
+	public synchronized void stop() {
+		if(sweeper == null) {
+			return;
+		}
+		// Not shutdownNow(), interrupting a flush part way through writing could lose its changes
+		sweeper.shutdown();
+		try {
+			if(!sweeper.awaitTermination(STOP_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+				System.err.println("Session flushing didn't stop in time");
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		sweeper = null;
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownFlush);
+		} catch(IllegalStateException e) {
+			// Already shutting down, the hook will flush anyway
+		}
+		shutdownFlush = null;
+		flush();
+	}
+
+	private boolean isExpired(Session session, long now) {
+		return now - session.lastAccess >= idleMillis || now - session.createdAt >= absoluteMillis;
+	}
+
+	private Session touch(Session session) {
+		if(session == null) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		if(isExpired(session, now)) {
+			remove(session);
+			return null;
+		}
+		session.lastAccess = now;
+		if(now - session.storedAccess >= ACCESS_WRITE_MILLIS) {
+			dirty.add(session.sessionId);
+		}
+		return session;
+	}
+
+	private void add(Session session) {
+		byId.put(session.sessionId, session);
+		byUser.compute(session.userId, (user, current) -> {
+			ArrayList<Session> sessions = current == null ? new ArrayList<>() : new ArrayList<>(current);
+			sessions.add(session);
+			return Collections.unmodifiableList(sessions);
+		});
+	}
+
+	private boolean remove(Session session) {
+		if(!byId.remove(session.sessionId, session)) {
+			return false;
+		}
+		byUser.computeIfPresent(session.userId, (user, current) -> {
+			ArrayList<Session> sessions = new ArrayList<>(current);
+			sessions.remove(session);
+			return sessions.isEmpty() ? null : Collections.unmodifiableList(sessions);
+		});
+		dirty.add(session.sessionId);
+		return true;
+	}
+
+	/**
+	 * A single logged in user's session
+	 */
+	public static class Session {
+		private int sessionId;
+		private String userId;
+		private int authLevel;
+		private long createdAt;
+		private volatile long lastAccess;
+		private volatile long storedAccess;
+
+		private Session(int sessionId, String userId, int authLevel, long createdAt, long lastAccess) {
+			this.sessionId = sessionId;
+			this.userId = userId;
+			this.authLevel = authLevel;
+			this.createdAt = createdAt;
+			this.lastAccess = lastAccess;
+			this.storedAccess = lastAccess;
+		}
+
+		/**
+		 * @return The session's ID in the Sessions table
+		 */
+		public int getSessionId() {
+			return sessionId;
+		}
+
+		/**
+		 * @return The user the session belongs to
+		 */
+		public String getUserId() {
+			return userId;
+		}
+
+		/**
+		 * @return The role level the user logged in with
+		 */
+		public int getAuthLevel() {
+			return authLevel;
+		}
+
+		/**
+		 * @return When the session started, in milliseconds since the epoch
+		 */
+		public long getCreatedAt() {
+			return createdAt;
+		}
+
+		/**
+		 * @return When the session was last used, in milliseconds since the epoch
+		 */
+		public long getLastAccess() {
+			return lastAccess;
+		}
+	}
+}
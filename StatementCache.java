@@ -0,0 +1,257 @@
+package yuconz23d;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the PreparedStatements created on a single pooled connection,
+ * keyed by their SQL text. Re-using a statement lets SQLite skip parsing
+ * and planning the same query again, which matters for the small fixed
+ * queries (passwords, sessions, permissions) that run on every action.
+ *
+ * The cache holds a limited number of statements and evicts the least
+ * recently used one that isn't still being read when it is full.
+ * Statements handed out by the cache can be closed as normal, which only
+ * resets them for the next caller.
+ *
+ * A cache is only ever used by whoever currently leases its connection,
+ * so it does not need to be thread-safe itself.
+ */
+public class StatementCache {
+	private int capacity;
+	private Stats stats;
+	private LinkedHashMap<String, CachedStatement> statements;
+
+	/**
+	 * Constructs an empty cache
+	 * @param capacity The maximum number of statements to keep prepared
+	 * @param stats The counters to record this cache's hits, misses and evictions in
+	 */
+	public StatementCache(int capacity, Stats stats) {
+		this.capacity = capacity;
+		this.stats = stats;
+		// Access ordered, so iteration starts from the least recently used statement
+		this.statements = new LinkedHashMap<String, CachedStatement>(capacity + 1, 0.75f, true);
+	}
+
+	/**
+	 * Retrieves a prepared statement for the given SQL, preparing and caching
+	 * it on the connection if it isn't already cached
+	 * @param conn The real connection this cache belongs to
+	 * @param sql The SQL text of the statement
+	 * @return A PreparedStatement ready for its parameters to be set, null when
+	 *         the cached statement is already in use and the caller should prepare its own
+	 * @throws SQLException When the statement couldn't be prepared
+	 */
+	public PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+		CachedStatement cached = statements.get(sql);
+		if(cached != null) {
+			if(cached.statement.isClosed()) {
+				statements.remove(sql);
+			} else if(cached.isBusy()) {
+				// Still being read by an earlier call during this lease, don't pull it out from under them
+				stats.misses.incrementAndGet();
+				return null;
+			} else {
+				stats.hits.incrementAndGet();
+				return cached.proxy;
+			}
+		}
+		stats.misses.incrementAndGet();
+		cached = new CachedStatement(conn.prepareStatement(sql));
+		statements.put(sql, cached);
+		if(statements.size() > capacity) {
+			evictOne(cached);
+		}
+		return cached.proxy;
+	}
+
+	/**
+	 * Closes and forgets the least recently used statement which isn't still
+	 * being read. When every statement is busy the cache goes over capacity
+	 * until the end of the lease, rather than closing one mid-read.
+	 * @param added The statement just added, which is never evicted
+	 */
+	private void evictOne(CachedStatement added) {
+		Iterator<CachedStatement> eldestFirst = statements.values().iterator();
+		while(eldestFirst.hasNext()) {
+			CachedStatement candidate = eldestFirst.next();
+			if(candidate != added && !candidate.isBusy()) {
+				eldestFirst.remove();
+				candidate.closeQuietly();
+				stats.evictions.incrementAndGet();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Resets every cached statement so none of them are holding a result set
+	 * open, called when the connection is returned to the pool
+	 */
+	public void resetAll() {
+		for(CachedStatement cached : statements.values()) {
+			cached.reset();
+		}
+	}
+
+	/**
+	 * Closes every cached statement, called when the connection itself is closed
+	 */
+	public void closeAll() {
+		for(CachedStatement cached : statements.values()) {
+			cached.closeQuietly();
+		}
+		statements.clear();
+	}
+
+	/**
+	 * @return The number of statements currently cached
+	 */
+	public int size() {
+		return statements.size();
+	}
+
+	/**
+	 * A statement held by the cache along with the proxy handed out to callers,
+	 * which keeps close() from actually closing the statement
+	 */
+	private class CachedStatement implements InvocationHandler {
+		private PreparedStatement statement;
+		private PreparedStatement proxy;
+		private ResultSet openResults;
+
+		private CachedStatement(PreparedStatement statement) {
+			this.statement = statement;
+			this.proxy = (PreparedStatement) Proxy.newProxyInstance(
+					PreparedStatement.class.getClassLoader(),
+					new Class<?>[] { PreparedStatement.class },
+					this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if(method.getDeclaringClass() == Object.class) {
+				switch(name) {
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				default:
+					return "Cached" + statement;
+				}
+			}
+			if(name.equals("close")) {
+				reset();
+				return null;
+			}
+			if(name.equals("isClosed")) {
+				return false;
+			}
+
+			Object result;
+			try {
+				result = method.invoke(statement, args);
+			} catch(InvocationTargetException e) {
+				throw e.getCause();
+			}
+			if(result instanceof ResultSet) {
+				openResults = (ResultSet) result;
+			}
+			return result;
+		}
+
+		/**
+		 * Checks whether a result set from this statement is still being read.
+		 * Callers may close the result set without closing the statement, so
+		 * the result set itself is asked.
+		 */
+		private boolean isBusy() {
+			if(openResults == null) {
+				return false;
+			}
+			try {
+				if(!openResults.isClosed()) {
+					return true;
+				}
+				statement.clearParameters();
+			} catch(SQLException e) {
+				return true; // Can't tell, so leave it alone
+			}
+			openResults = null;
+			return false;
+		}
+
+		/**
+		 * Closes any result set still open on the statement and clears its parameters
+		 */
+		private void reset() {
+			try {
+				if(openResults != null) {
+					openResults.close();
+				}
+				statement.clearParameters();
+			} catch(SQLException e) {
+				closeQuietly(); // A statement that can't be reset can't be trusted, it'll be re-prepared
+			}
+			openResults = null;
+		}
+
+		private void closeQuietly() {
+			try {
+				statement.close();
+			} catch(SQLException e) {
+				// Being thrown away regardless
+			}
+			openResults = null;
+		}
+	}
+
+	/**
+	 * Hit, miss and eviction counters, shared by all of the statement
+	 * caches belonging to one connection pool
+	 */
+	public static class Stats {
+		private AtomicLong hits = new AtomicLong();
+		private AtomicLong misses = new AtomicLong();
+		private AtomicLong evictions = new AtomicLong();
+
+		/**
+		 * @return The number of times a cached statement was re-used
+		 */
+		public long getHits() {
+			return hits.get();
+		}
+
+		/**
+		 * @return The number of times a statement had to be prepared
+		 */
+		public long getMisses() {
+			return misses.get();
+		}
+
+		/**
+		 * @return The number of statements thrown out to make room for others
+		 */
+		public long getEvictions() {
+			return evictions.get();
+		}
+
+		/**
+		 * Returns the counters as a one-line summary
+		 */
+		public String toString() {
+			return "hits=" + getHits() + " misses=" + getMisses() + " evictions=" + getEvictions();
+		}
+	}
+}
@@ -1,7 +1,6 @@
 package yuconz23d;
 
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -21,12 +20,10 @@ public class Validation {
 
 		RecordType rt = record.getRecordType();
 
-		LinkedHashMap<String, Object> recordValues = record.getRecordAsMap();
-
 		for(Column currCol : rt.getColumns()) {
 			if(!currCol.isHidden()) {
 				Pattern pattern = currCol.getRegexPattern();
-				Object currRecordValue = recordValues.get(currCol.getName());
+				Object currRecordValue = record.getValue(currCol.getName());
 				Matcher matcher = pattern.matcher(currRecordValue + "");
 				if(!matcher.matches()) {
 					errors.add(currCol.getErrorTip());
@@ -0,0 +1,53 @@
+package yuconz23d;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors used to run blocking work (database calls,
+ * HTTP requests) off the calling thread.
+ *
+ * On a JVM which supports virtual threads each task gets its own virtual
+ * thread, which is cheap enough that callers only need to bound how many
+ * tasks touch the database at once. Older JVMs fall back to a fixed pool
+ * of daemon platform threads.
+ */
+public final class WorkerExecutors {
+
+	private WorkerExecutors() {
+	}
+
+	/**
+	 * Creates an executor for blocking tasks
+	 * @param name The name given to the threads of the fallback pool
+	 * @param fallbackThreads The number of threads in the fallback pool, when virtual threads aren't available
+	 * @return ExecutorService running each task on a virtual thread where possible
+	 */
+	public static ExecutorService newBlockingExecutor(String name, int fallbackThreads) {
+		try {
+			// Looked up reflectively so the code still runs on JVMs from before virtual threads
+			Method virtualExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) virtualExecutor.invoke(null);
+		} catch(ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(fallbackThreads, daemonThreads(name));
+		}
+	}
+
+	/**
+	 * Creates a ThreadFactory for numbered daemon threads, so that
+	 * background workers never keep the application alive on their own
+	 * @param name The prefix of each thread's name
+	 * @return The ThreadFactory
+	 */
+	public static ThreadFactory daemonThreads(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+}
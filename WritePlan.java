@@ -0,0 +1,285 @@
+package yuconz23d;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+
+/**
+ * Holds everything needed to INSERT or UPDATE one type of record,
+ * worked out once from the RecordType's columns rather than on every
+ * write. This includes the table name, the SQL text of both statements,
+ * the order that columns are bound in and which columns identify a
+ * record in the WHERE clause of an update.
+ *
+ * Values of encrypted columns are encrypted as they're bound, so they
+ * are never written to the database as plain text. Each is bound to its
+ * table, column and record key (see encryptionContext()), so the record
+ * key must be known when a record is inserted for its type to have any
+ * encrypted columns.
+ *
+ * Plans are built for every RecordType when the class is first used
+ * and are immutable afterwards, so they can be shared freely.
+ */
+public class WritePlan {
+	private static final EnumMap<RecordType, WritePlan> plans = new EnumMap<>(RecordType.class);
+
+	// This block prepares the plan of every record type up front
+	static {
+		for(RecordType recordType : RecordType.values()) {
+			plans.put(recordType, new WritePlan(recordType));
+		}
+	}
+
+	private RecordType recordType;
+	private String tableName;
+	private String[] insertColumns;
+	private String[] setColumns;
+	private String[] keyColumns;
+	private boolean[] insertEncrypted;
+	private boolean[] setEncrypted;
+	private int firstKeyIndex;
+	private String insertSql;
+	private String updateSql;
+
+	/**
+	 * Builds the plan for a record type, only called from the static block
+	 * @param recordType The record type to plan writes for
+	 */
+	private WritePlan(RecordType recordType) {
+		this.recordType = recordType;
+		this.tableName = recordType.name(); // Enum names match the DB table names
+
+		List<Column> insertList = new ArrayList<>();
+		List<Column> setList = new ArrayList<>();
+		for(Column column : recordType.getColumns()) {
+			if(!column.isHidden()) {
+				insertList.add(column);
+				if(column.isEditable()) { // Column is displayed and editable
+					setList.add(column);
+				}
+			}
+		}
+		this.insertColumns = namesOf(insertList);
+		this.insertEncrypted = encryptedOf(insertList);
+		this.setColumns = namesOf(setList);
+		this.setEncrypted = encryptedOf(setList);
+		this.keyColumns = keyColumnsOf(recordType);
+		this.firstKeyIndex = setColumns.length + 1;
+		// Encrypted values are bound to the record key, so it has to be written rather than filled in by the database
+		if(hasEncrypted(insertEncrypted) && !Arrays.asList(insertColumns).containsAll(Arrays.asList(keyColumns))) {
+			throw new IllegalStateException(recordType + " has encrypted columns but its key isn't known until it's inserted");
+		}
+
+		StringBuilder insert = new StringBuilder("INSERT INTO ").append(tableName).append(" (");
+		StringBuilder placeholders = new StringBuilder("VALUES (");
+		for(int i=0; i < insertColumns.length; i++) {
+			if(i > 0) {
+				insert.append(", ");
+				placeholders.append(", ");
+			}
+			insert.append(insertColumns[i]);
+			placeholders.append("?");
+		}
+		insert.append(") ").append(placeholders).append(")");
+		this.insertSql = insert.toString();
+
+		StringBuilder update = new StringBuilder("UPDATE ").append(tableName).append(" SET ");
+		for(int i=0; i < setColumns.length; i++) {
+			if(i > 0) {
+				update.append(", ");
+			}
+			update.append(setColumns[i]).append("=?");
+		}
+		update.append(" WHERE ");
+		for(int i=0; i < keyColumns.length; i++) {
+			if(i > 0) {
+				update.append(" AND ");
+			}
+			update.append(keyColumns[i]).append("=?");
+		}
+		this.updateSql = update.toString();
+	}
+
+	private static String[] namesOf(List<Column> columns) {
+		String[] names = new String[columns.size()];
+		for(int i=0; i < names.length; i++) {
+			names[i] = columns.get(i).getName();
+		}
+		return names;
+	}
+
+	private static boolean hasEncrypted(boolean[] encrypted) {
+		for(boolean column : encrypted) {
+			if(column) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean[] encryptedOf(List<Column> columns) {
+		boolean[] encrypted = new boolean[columns.size()];
+		for(int i=0; i < encrypted.length; i++) {
+			encrypted[i] = columns.get(i).isEncrypted();
+		}
+		return encrypted;
+	}
+
+	/**
+	 * Specifies which columns identify a single record of each type when it is updated
+	 * @param recordType The record type to find the key of
+	 * @return The names of the key columns, in the order they're bound
+	 */
+	private static String[] keyColumnsOf(RecordType recordType) {
+		switch(recordType) {
+		case Probation:
+		case SalaryIncrease:
+			return new String[] { "employeeId", "startDate" };
+		case Promotion:
+			return new String[] { "promotionId" };
+		case AnnualReview:
+			return new String[] { "employeeId", "reviewDate" }; // TODO: Review database definition of performanceReview
+		case Employee:
+		case PersonalDetails:
+		case InitialEmploymentDetails:
+		case Termination:
+		default:
+			return new String[] { "employeeId" };
+		}
+	}
+
+	/**
+	 * Retrieves the pre-built plan for a type of record
+	 * @param recordType The type of record being written
+	 * @return The WritePlan for that record type
+	 */
+	public static WritePlan forType(RecordType recordType) {
+		return plans.get(recordType);
+	}
+
+	/**
+	 * Binds a record's values to a statement prepared from getInsertSql()
+	 * @param statement The prepared INSERT statement
+	 * @param record The record being inserted
+	 * @throws SQLException When a value couldn't be bound
+	 */
+	public void bindInsert(PreparedStatement statement, Record record) throws SQLException {
+		for(int i=0; i < insertColumns.length; i++) {
+			statement.setObject(i + 1, valueOf(record, insertColumns[i], insertEncrypted[i]));
+		}
+	}
+
+	/**
+	 * Binds a record's values to a statement prepared from getUpdateSql(),
+	 * both the new values and the key values of the WHERE clause
+	 * @param statement The prepared UPDATE statement
+	 * @param record The record being updated, holding its new values
+	 * @throws SQLException When a value couldn't be bound
+	 */
+	public void bindUpdate(PreparedStatement statement, Record record) throws SQLException {
+		for(int i=0; i < setColumns.length; i++) {
+			statement.setObject(i + 1, valueOf(record, setColumns[i], setEncrypted[i]));
+		}
+		for(int i=0; i < keyColumns.length; i++) {
+			statement.setObject(firstKeyIndex + i, record.getValue(keyColumns[i]));
+		}
+	}
+
+	/**
+	 * Retrieves the value to bind for a column, encrypting it when the column is encrypted
+	 */
+	private Object valueOf(Record record, String column, boolean encrypted) throws SQLException {
+		Object value = record.getValue(column);
+		if(!encrypted || value == null) {
+			return value;
+		}
+		Object[] keyValues = new Object[keyColumns.length];
+		for(int i=0; i < keyColumns.length; i++) {
+			keyValues[i] = record.getValue(keyColumns[i]);
+		}
+		try {
+			return Encryption.getShared().encrypt(value.toString(), encryptionContext(column, keyValues));
+		} catch(IllegalStateException e) {
+			throw new SQLException("Unable to encrypt " + column, e);
+		}
+	}
+
+	/**
+	 * Works out the context an encrypted value is bound to, naming the table,
+	 * column and record it's stored in, e.g. "PersonalDetails.telNo:323024".
+	 * A value only decrypts with the context it was encrypted with.
+	 * @param column The encrypted column
+	 * @param keyValues The record's values of getKeyColumns(), in the same order
+	 * @return The context to encrypt or decrypt the value with
+	 */
+	public String encryptionContext(String column, Object[] keyValues) {
+		StringBuilder context = new StringBuilder(tableName).append('.').append(column).append(':');
+		for(int i=0; i < keyValues.length; i++) {
+			if(i > 0) {
+				context.append(',');
+			}
+			// Trimmed, as the value entered may not be exactly what the database hands back
+			context.append(keyValues[i] == null ? "" : keyValues[i].toString().trim());
+		}
+		return context.toString();
+	}
+
+	/**
+	 * @return The record type this plan writes
+	 */
+	public RecordType getRecordType() {
+		return recordType;
+	}
+
+	/**
+	 * @return The name of the table this plan writes to
+	 */
+	public String getTableName() {
+		return tableName;
+	}
+
+	/**
+	 * @return The INSERT statement's SQL text
+	 */
+	public String getInsertSql() {
+		return insertSql;
+	}
+
+	/**
+	 * @return The UPDATE statement's SQL text
+	 */
+	public String getUpdateSql() {
+		return updateSql;
+	}
+
+	/**
+	 * @return The columns bound by an INSERT, in bind order (a copy)
+	 */
+	public String[] getInsertColumns() {
+		return insertColumns.clone();
+	}
+
+	/**
+	 * @return The columns set by an UPDATE, in bind order (a copy)
+	 */
+	public String[] getSetColumns() {
+		return setColumns.clone();
+	}
+
+	/**
+	 * @return The columns used in the WHERE clause of an UPDATE, in bind order (a copy)
+	 */
+	public String[] getKeyColumns() {
+		return keyColumns.clone();
+	}
+
+	/**
+	 * @return The bind index of the first key column in the UPDATE statement
+	 */
+	public int getFirstKeyIndex() {
+		return firstKeyIndex;
+	}
+}
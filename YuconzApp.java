@@ -1,7 +1,10 @@
 package yuconz23d;
 
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Works as the main class for the program, as well
@@ -10,10 +13,17 @@ import java.util.List;
  *
  */
 public class YuconzApp {
-	private static Authentication auth;
+	private static final int RECORD_CACHE_SIZE = 500;
+	private static final long RECORD_CACHE_TTL = 5 * 60 * 1000;
+	// Shared so every session benefits from records that others have viewed
+	private static final RecordCache recordCache = new RecordCache(RECORD_CACHE_SIZE, RECORD_CACHE_TTL);
+	// One per app, so that each session (GUI or service) has its own login
+	private Authentication auth;
 	private DatabaseHandler db;
+	private AsyncDatabaseHandler asyncDb;
 	private PermissionHandler perms;
 	private Validation val;
+	private volatile CapabilitySet capabilities;
 	
 	/**
 	 * Constructs the YuconzApp by initialising the auth class it uses
@@ -21,6 +31,7 @@ public class YuconzApp {
 	public YuconzApp() {
 		auth = new Authentication();
 		db = new DatabaseHandler();
+		asyncDb = new AsyncDatabaseHandler(db);
 		perms = new PermissionHandler();
 		val = new Validation();
 	}
@@ -45,7 +56,21 @@ public class YuconzApp {
 	 * @return true if the login was succesful, false if it failed
 	 */
 	public boolean submitLogin(String username, String password, int authLevel) {
-		return auth.checkLogin(username, password, authLevel);
+		capabilities = null;
+		if(!auth.checkLogin(username, password, authLevel)) {
+			return false;
+		}
+		capabilities = perms.buildCapabilities(auth.getUser(), auth.getStaffNo(), auth.getAccessRole());
+		return true;
+	}
+	
+	/**
+	 * Retrieves the outcome of the most recent login attempt, so a failed
+	 * attempt can be told apart from one turned away for being too frequent
+	 * @return The LoginResult of the last attempt, null if none has been made
+	 */
+	public LoginResult getLastLogin() {
+		return auth.getLastLogin();
 	}
 	
 	/**
@@ -77,6 +102,7 @@ public class YuconzApp {
 	 */
 	public void logout() {
 		auth.logout();
+		capabilities = null;
 	}
 	
 	/**
@@ -88,19 +114,84 @@ public class YuconzApp {
 	 * @return True if the user has permission to do this, false otherwise
 	 */
 	public boolean checkPermission(String userId, String staffNo, Role authRole, ActionType action, Record targetRecord) {
+		CapabilitySet current = currentCapabilities(userId, staffNo, authRole);
+		if(current != null) {
+			return current.allows(action, targetRecord);
+		}
 		return perms.hasPermission(userId, staffNo, authRole, action, targetRecord);
 	}
 	
+	/**
+	 * Asks the PermissionHandler which of a list of records this user may do an action to
+	 * @param userId String - The userId of the user who is attempting the action
+	 * @param staffNo String - The staffNo of the employee who is attempting the action
+	 * @param authRole Role - The selected authentication level of the current user
+	 * @param action ActionType - The action that is being attempted
+	 * @param targetRecords List<Record> - The records that are being targeted by this action
+	 * @return List<Record> of only the records the user has permission for
+	 */
+	public List<Record> filterPermitted(String userId, String staffNo, Role authRole, ActionType action, List<Record> targetRecords) {
+		CapabilitySet current = currentCapabilities(userId, staffNo, authRole);
+		if(current != null) {
+			return current.filterPermitted(action, targetRecords);
+		}
+		return perms.filterPermitted(userId, staffNo, authRole, action, targetRecords);
+	}
+	
+	/**
+	 * Retrieves the capabilities built when the current user logged in,
+	 * rebuilding them first if the grants have changed since
+	 * @param userId String - The userId the permission is being checked for
+	 * @param staffNo String - The staffNo the permission is being checked for
+	 * @param authRole Role - The role the permission is being checked for
+	 * @return The CapabilitySet, null if there isn't one for exactly this user and role
+	 */
+	private CapabilitySet currentCapabilities(String userId, String staffNo, Role authRole) {
+		CapabilitySet current = capabilities;
+		if(current == null || !current.isFor(userId, staffNo, authRole)) {
+			return null;
+		}
+		CapabilitySet refreshed = perms.refreshCapabilities(current);
+		capabilities = refreshed;
+		return refreshed;
+	}
+	
 	/**
 	 * Requests a Record or a List of Records from the database via
-	 * the recordtype and related employeeId
+	 * the recordtype and related employeeId. Recently viewed records
+	 * are served from the record cache instead of the database.
 	 * @param rType The type of Record (RecordType enum)
 	 * @param employeeId The employeeID that the record belongs to
 	 * @return The Record or List of Records that were found (List in cases where the employee has multiple promotions for example)
 	 * @throws SQLException When an SQL Connection/transaction error occurs
 	 */
 	public Object viewRecord(RecordType rType, String employeeId) throws SQLException {
-		return db.retrieveRecord(employeeId, rType);
+		RecordCache.Lookup cached = recordCache.get(employeeId, rType);
+		if(cached.isHit()) {
+			return cached.getValue();
+		}
+		Object records = db.retrieveRecord(employeeId, rType);
+		recordCache.put(cached, records);
+		return records;
+	}
+	
+	/**
+	 * Requests a Record or a List of Records as viewRecord() does, but reads
+	 * them from the database on a worker thread so the caller (e.g. the GUI's
+	 * event thread) isn't kept waiting. Cached records are returned straight away.
+	 * @param rType The type of Record (RecordType enum)
+	 * @param employeeId The employeeID that the record belongs to
+	 * @return Future of the Record, List of Records or null, failing with the SQLException if one occurs
+	 */
+	public CompletableFuture<Object> viewRecordAsync(RecordType rType, String employeeId) {
+		RecordCache.Lookup cached = recordCache.get(employeeId, rType);
+		if(cached.isHit()) {
+			return CompletableFuture.completedFuture(cached.getValue());
+		}
+		return asyncDb.retrieveRecord(employeeId, rType).thenApply(records -> {
+			recordCache.put(cached, records);
+			return records;
+		});
 	}
 	
 	/**
@@ -111,7 +202,11 @@ public class YuconzApp {
 	 * @throws SQLException When an SQL connection/transaction issue occurs
 	 */
 	public boolean updateRecord(Record targetRecord) throws SQLException {
-		return db.updateRecord(targetRecord);
+		try {
+			return db.updateRecord(targetRecord);
+		} finally {
+			invalidateCachedRecord(targetRecord);
+		}
 	}
 	
 	/**
@@ -122,7 +217,74 @@ public class YuconzApp {
 	 * @throws SQLException when an SQL connection/transaction error occurs
 	 */
 	public boolean createRecord(Record newRecord) throws SQLException {
-		return db.createRecord(newRecord);
+		try {
+			return db.createRecord(newRecord);
+		} finally {
+			invalidateCachedRecord(newRecord);
+		}
+	}
+	
+	/**
+	 * Acts as a passthrough to the database handler for creating many records
+	 * at once, for example when importing existing records in bulk.
+	 * @param newRecords The new records being saved (values inside)
+	 * @return BatchResult reporting how many records were saved and which ones failed
+	 * @throws SQLException when an SQL connection/transaction error occurs
+	 */
+	public BatchResult createRecords(Collection<Record> newRecords) throws SQLException {
+		try {
+			return db.createRecords(newRecords);
+		} finally {
+			for(Record newRecord : newRecords) {
+				invalidateCachedRecord(newRecord);
+			}
+		}
+	}
+	
+	/**
+	 * Recalculates the stored current role of every employee. This is needed
+	 * after Promotion, InitialEmploymentDetails or Employee records have been
+	 * changed directly in the database rather than through this system.
+	 * @return The number of employees whose role was stored
+	 * @throws SQLException when an SQL connection/transaction error occurs
+	 */
+	public int rebuildCurrentRoles() throws SQLException {
+		return db.rebuildCurrentRoles();
+	}
+	
+	/**
+	 * Retrieves the cache that viewRecord() is served from, mainly so its
+	 * hit, miss and eviction statistics can be inspected
+	 * @return The RecordCache shared by every YuconzApp
+	 */
+	public static RecordCache getRecordCache() {
+		return recordCache;
+	}
+	
+	/**
+	 * Removes a record that has just been written from the record cache.
+	 * This is done whether or not the write succeeded, as a failed write
+	 * may still have changed the database.
+	 * @param writtenRecord The record that was created/updated
+	 */
+	private void invalidateCachedRecord(Record writtenRecord) {
+		if(writtenRecord == null) {
+			return;
+		}
+		RecordType rType = writtenRecord.getRecordType();
+		CapabilitySet current = capabilities;
+		if(rType == RecordType.Employee && current != null
+				&& Objects.equals(current.getStaffNo(), writtenRecord.getValue("employeeId"))) {
+			// The current user's department may have changed, so rebuild their capabilities
+			capabilities = perms.buildCapabilities(current.getUserId(), current.getStaffNo(), current.getRole());
+		}
+		Column idColumn = rType.getColumns().get(RecordSchema.of(rType).indexOf("employeeId"));
+		if(idColumn.isEditable()) {
+			// The record may have been moved from another employee, so any of them could be stale
+			recordCache.invalidateAll(rType);
+		} else {
+			recordCache.invalidate(Objects.toString(writtenRecord.getValue("employeeId"), null), rType);
+		}
 	}
 	
 	/**
@@ -0,0 +1,564 @@
+package yuconz23d;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the system headless as an HTTP service, so many users can be
+ * logged in at once from a single JVM rather than one per GUI.
+ *
+ * Each successful login is given a random session token, which must be
+ * sent as "Authorization: Bearer &lt;token&gt;" on every later request.
+ * Every session has its own YuconzApp, and so its own Authentication,
+ * while the connection pools, caches and permission matrix underneath
+ * are shared by all of them. Requests are handled on WorkerExecutors'
+ * blocking executor, a virtual thread each where the JVM supports it.
+ *
+ * The service only listens on the loopback interface unless it's given
+ * another address to bind to, so it isn't reachable from other machines
+ * by accident.
+ *
+ * Parameters are read from the query string and, for POST requests, from
+ * an application/x-www-form-urlencoded body. Responses are JSON.
+ *
+ *   POST /roles        username                     - the roles the user may log in as
+ *   POST /login        username, password, role     - logs in, returns a token
+ *   POST /logout                                    - ends the session
+ *   GET  /permission   type, action, employeeId     - whether an action is allowed
+ *   GET  /records      type, employeeId             - views a record (or records)
+ *   POST /records/create  type, and a value per column - creates a record
+ *   POST /records/update  type, and a value per column - updates a record
+ */
+public class YuconzService {
+	private static final int DEFAULT_PORT = 8080;
+	private static final int FALLBACK_THREADS = 32;
+	private static final long SESSION_IDLE_TIMEOUT = 30 * 60 * 1000;
+	private static final long SWEEP_INTERVAL = 60 * 1000;
+
+	private HttpServer server;
+	private ExecutorService executor;
+	private ScheduledExecutorService sweeper;
+	private ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+	private SecureRandom random = new SecureRandom();
+
+	/**
+	 * Starts the service from the command line
+	 * @param args The port to listen on may be given as the first argument, 8080 otherwise,
+	 *             and the address to bind to as the second, the loopback address otherwise
+	 * @throws IOException When the port can't be listened on
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		InetAddress bindAddress = args.length > 1 ? InetAddress.getByName(args[1]) : InetAddress.getLoopbackAddress();
+		YuconzService service = new YuconzService(bindAddress, port);
+		service.start();
+		System.out.println("Yuconz service listening on " + bindAddress.getHostAddress() + ":" + service.getPort());
+	}
+
+	/**
+	 * Constructs the service listening on the loopback address only, start()
+	 * must be called before it accepts requests
+	 * @param port The port to listen on, 0 to pick any free port
+	 * @throws IOException When the port can't be listened on
+	 */
+	public YuconzService(int port) throws IOException {
+		this(InetAddress.getLoopbackAddress(), port);
+	}
+
+	/**
+	 * Constructs the service, start() must be called before it accepts requests
+	 * @param bindAddress The address to listen on, e.g. 0.0.0.0 to listen on every interface
+	 * @param port The port to listen on, 0 to pick any free port
+	 * @throws IOException When the port can't be listened on
+	 */
+	public YuconzService(InetAddress bindAddress, int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+		executor = WorkerExecutors.newBlockingExecutor("yuconz-http", FALLBACK_THREADS);
+		server.setExecutor(executor);
+		server.createContext("/roles", route(this::roles));
+		server.createContext("/login", route(this::login));
+		server.createContext("/logout", route(this::logout));
+		server.createContext("/permission", route(this::permission));
+		server.createContext("/records", route(this::records));
+	}
+
+	/**
+	 * Starts accepting requests and expiring idle sessions
+	 */
+	public void start() {
+		server.start();
+		sweeper = Executors.newSingleThreadScheduledExecutor(WorkerExecutors.daemonThreads("yuconz-sessions"));
+		sweeper.scheduleWithFixedDelay(this::expireIdleSessions, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the service, logging every session out
+	 * @param delaySeconds How long to give requests which are already running to finish
+	 */
+	public void stop(int delaySeconds) {
+		server.stop(delaySeconds);
+		if(sweeper != null) {
+			sweeper.shutdownNow();
+		}
+		for(Session session : sessions.values()) {
+			session.logout();
+		}
+		sessions.clear();
+		executor.shutdown();
+	}
+
+	/**
+	 * @return The port the service is listening on
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * @return The number of sessions currently logged in
+	 */
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	private Response roles(Request request) {
+		String username = request.require("username");
+		String[] roles = new YuconzApp().submitUsername(username);
+		if(roles == null) {
+			return Response.error(404, "Unknown user");
+		}
+		return Response.ok(Json.object("roles", roles));
+	}
+
+	private Response login(Request request) {
+		String username = request.require("username");
+		String password = request.require("password");
+		int authLevel = Role.idOf(request.require("role"));
+		if(authLevel == 0) {
+			return Response.error(400, "Unknown role");
+		}
+		YuconzApp app = new YuconzApp();
+		if(!app.submitLogin(username, password, authLevel)) {
+			LoginResult result = app.getLastLogin();
+			if(result != null) {
+				switch(result.getStatus()) {
+				case RATE_LIMITED:
+					return Response.error(429, "Too many login attempts");
+				// These two are only reported once the password has been checked, so nothing is given away to a guesser
+				case NO_SYSTEM_ACCESS:
+					return Response.error(403, "This account doesn't have system access");
+				case ROLE_NOT_PERMITTED:
+					return Response.error(403, "You may not log in as " + Role.nameOf(authLevel));
+				default:
+					break;
+				}
+			}
+			return Response.error(401, "Login failed");
+		}
+		String token = newToken();
+		sessions.put(token, new Session(app));
+		return Response.ok(Json.object("token", token, "user", app.getCurrentUser(),
+				"employeeId", app.getCurrentEmployee(), "role", Role.nameOf(app.getCurrentRole().id())));
+	}
+
+	private Response logout(Request request) {
+		String token = request.getToken();
+		Session session = token == null ? null : sessions.remove(token);
+		if(session == null) {
+			return Response.error(401, "Not logged in");
+		}
+		session.logout();
+		return Response.ok(Json.object("loggedOut", true));
+	}
+
+	private Response permission(Request request) {
+		Session session = session(request);
+		RecordType recordType = recordType(request.require("type"));
+		ActionType action = actionType(request.require("action"));
+		LinkedHashMap<String, Object> values = new LinkedHashMap<>();
+		String employeeId = request.get("employeeId");
+		if(employeeId != null) {
+			values.put("employeeId", employeeId);
+		}
+		synchronized(session) {
+			boolean allowed = session.app.checkPermission(session.app.getCurrentUser(), session.app.getCurrentEmployee(),
+					session.app.getCurrentRole(), action, new Record(recordType, values.isEmpty() ? null : values));
+			return Response.ok(Json.object("allowed", allowed));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Response records(Request request) throws SQLException {
+		Session session = session(request);
+		RecordType recordType = recordType(request.require("type"));
+		String path = request.getPath();
+		YuconzApp app = session.app;
+
+		synchronized(session) {
+			if(path.equals("/records") && request.isGet()) {
+				String employeeId = request.require("employeeId");
+				LinkedHashMap<String, Object> placeHolder = new LinkedHashMap<>();
+				placeHolder.put("employeeId", employeeId);
+				if(!app.checkPermission(app.getCurrentUser(), app.getCurrentEmployee(), app.getCurrentRole(),
+						ActionType.VIEW, new Record(recordType, placeHolder))) {
+					return Response.error(403, "You don't have permission to view this " + recordType.name() + " record");
+				}
+				Object viewResult = app.viewRecord(recordType, employeeId);
+				if(viewResult instanceof List<?>) {
+					List<Record> permitted = app.filterPermitted(app.getCurrentUser(), app.getCurrentEmployee(),
+							app.getCurrentRole(), ActionType.VIEW, (List<Record>) viewResult);
+					return Response.ok(Json.object("records", permitted));
+				}
+				if(viewResult == null) {
+					return Response.error(404, "No " + recordType.name() + " record(s) found for this employee ID");
+				}
+				return Response.ok(Json.object("record", viewResult));
+			}
+
+			boolean create = path.equals("/records/create");
+			if(!request.isPost() || (!create && !path.equals("/records/update"))) {
+				return Response.error(404, "Not found");
+			}
+			LinkedHashMap<String, Object> recordMap = new LinkedHashMap<>();
+			for(Column column : recordType.getColumns()) {
+				if(!column.isHidden()) {
+					recordMap.put(column.getName(), request.get(column.getName()));
+				}
+			}
+			Record saveRecord = new Record(recordType, recordMap);
+			ActionType action = create ? ActionType.CREATE : ActionType.MODIFY;
+			if(!app.checkPermission(app.getCurrentUser(), app.getCurrentEmployee(), app.getCurrentRole(), action, saveRecord)) {
+				return Response.error(403, "You don't have permission to " + action.toString().toLowerCase()
+						+ " this " + recordType.name() + " record");
+			}
+			List<String> errors = app.validateRecord(saveRecord);
+			if(!errors.isEmpty()) {
+				return new Response(400, Json.object("errors", errors));
+			}
+			boolean saved = create ? app.createRecord(saveRecord) : app.updateRecord(saveRecord);
+			return Response.ok(Json.object("saved", saved));
+		}
+	}
+
+	/**
+	 * Finds the session a request belongs to
+	 * @throws ServiceException (401) When the request has no valid session token
+	 */
+	private Session session(Request request) {
+		String token = request.getToken();
+		Session session = token == null ? null : sessions.get(token);
+		if(session == null) {
+			throw new ServiceException(401, "Not logged in");
+		}
+		session.touch();
+		return session;
+	}
+
+	private String newToken() {
+		byte[] bytes = new byte[32];
+		random.nextBytes(bytes);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
+
+	private void expireIdleSessions() {
+		long cutoff = System.currentTimeMillis() - SESSION_IDLE_TIMEOUT;
+		Iterator<Map.Entry<String, Session>> it = sessions.entrySet().iterator();
+		while(it.hasNext()) {
+			Session session = it.next().getValue();
+			if(session.lastUsed < cutoff) {
+				it.remove();
+				session.logout();
+			}
+		}
+	}
+
+	private static RecordType recordType(String name) {
+		try {
+			return RecordType.valueOf(name);
+		} catch(IllegalArgumentException e) {
+			throw new ServiceException(400, "Unknown record type: " + name);
+		}
+	}
+
+	private static ActionType actionType(String name) {
+		try {
+			return ActionType.valueOf(name.toUpperCase());
+		} catch(IllegalArgumentException e) {
+			throw new ServiceException(400, "Unknown action: " + name);
+		}
+	}
+
+	/**
+	 * Wraps an endpoint so its Response (or failure) is written back as JSON
+	 */
+	private static HttpHandler route(Endpoint endpoint) {
+		return exchange -> {
+			Response response;
+			try {
+				response = endpoint.handle(new Request(exchange));
+			} catch(ServiceException e) {
+				response = Response.error(e.status, e.getMessage());
+			} catch(SQLException e) {
+				System.err.println("SQL connection error occurred: " + e.getMessage());
+				response = Response.error(500, "A database error occurred");
+			} catch(RuntimeException e) {
+				e.printStackTrace();
+				response = Response.error(500, "An unexpected error occurred");
+			}
+			byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+			exchange.sendResponseHeaders(response.status, body.length);
+			try(OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		};
+	}
+
+	/**
+	 * An endpoint of the service
+	 */
+	private interface Endpoint {
+		Response handle(Request request) throws SQLException, IOException;
+	}
+
+	/**
+	 * A logged in user's session
+	 */
+	private static class Session {
+		private YuconzApp app;
+		private volatile long lastUsed;
+
+		private Session(YuconzApp app) {
+			this.app = app;
+			touch();
+		}
+
+		private void touch() {
+			lastUsed = System.currentTimeMillis();
+		}
+
+		private synchronized void logout() {
+			app.logout();
+		}
+	}
+
+	/**
+	 * A request's method, path and parameters
+	 */
+	private static class Request {
+		private HttpExchange exchange;
+		private LinkedHashMap<String, String> params = new LinkedHashMap<>();
+
+		private Request(HttpExchange exchange) throws IOException {
+			this.exchange = exchange;
+			parse(exchange.getRequestURI().getRawQuery());
+			if(isPost()) {
+				parse(readBody(exchange.getRequestBody()));
+			}
+		}
+
+		private boolean isGet() {
+			return "GET".equalsIgnoreCase(exchange.getRequestMethod());
+		}
+
+		private boolean isPost() {
+			return "POST".equalsIgnoreCase(exchange.getRequestMethod());
+		}
+
+		private String getPath() {
+			return exchange.getRequestURI().getPath();
+		}
+
+		private String getToken() {
+			String header = exchange.getRequestHeaders().getFirst("Authorization");
+			if(header == null || !header.startsWith("Bearer ")) {
+				return null;
+			}
+			return header.substring("Bearer ".length()).trim();
+		}
+
+		private String get(String name) {
+			return params.get(name);
+		}
+
+		private String require(String name) {
+			String value = params.get(name);
+			if(value == null || value.isEmpty()) {
+				throw new ServiceException(400, "Missing parameter: " + name);
+			}
+			return value;
+		}
+
+		private void parse(String encoded) {
+			if(encoded == null || encoded.isEmpty()) {
+				return;
+			}
+			for(String pair : encoded.split("&")) {
+				int split = pair.indexOf('=');
+				String name = split < 0 ? pair : pair.substring(0, split);
+				String value = split < 0 ? "" : pair.substring(split + 1);
+				params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+			}
+		}
+
+		private static String readBody(InputStream in) throws IOException {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while((read = in.read(buffer)) != -1) {
+				body.write(buffer, 0, read);
+			}
+			return body.toString(StandardCharsets.UTF_8.name());
+		}
+	}
+
+	/**
+	 * The status and JSON body of a response
+	 */
+	private static class Response {
+		private int status;
+		private String body;
+
+		private Response(int status, String body) {
+			this.status = status;
+			this.body = body;
+		}
+
+		private static Response ok(String body) {
+			return new Response(200, body);
+		}
+
+		private static Response error(int status, String message) {
+			return new Response(status, Json.object("error", message));
+		}
+	}
+
+	/**
+	 * Thrown by endpoints to end a request with an error status
+	 */
+	private static class ServiceException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		private int status;
+
+		private ServiceException(int status, String message) {
+			super(message);
+			this.status = status;
+		}
+	}
+
+	/**
+	 * Writes the small amount of JSON the service needs, without a library
+	 */
+	private static final class Json {
+
+		/**
+		 * Builds a JSON object from alternating names and values
+		 */
+		private static String object(Object... namesAndValues) {
+			StringBuilder json = new StringBuilder("{");
+			for(int i=0; i < namesAndValues.length; i += 2) {
+				if(i > 0) {
+					json.append(',');
+				}
+				string(json, namesAndValues[i].toString());
+				json.append(':');
+				value(json, namesAndValues[i + 1]);
+			}
+			return json.append('}').toString();
+		}
+
+		private static void value(StringBuilder json, Object value) {
+			if(value == null) {
+				json.append("null");
+			} else if(value instanceof Boolean || value instanceof Number) {
+				json.append(value);
+			} else if(value instanceof Record) {
+				Record record = (Record) value;
+				RecordSchema schema = record.getSchema();
+				json.append('{');
+				for(int col=0; col < schema.size(); col++) {
+					if(col > 0) {
+						json.append(',');
+					}
+					string(json, schema.getColumnName(col));
+					json.append(':');
+					value(json, record.getValue(col));
+				}
+				json.append('}');
+			} else if(value instanceof Object[]) {
+				array(json, Arrays.asList((Object[]) value));
+			} else if(value instanceof Iterable<?>) {
+				array(json, (Iterable<?>) value);
+			} else {
+				string(json, value.toString());
+			}
+		}
+
+		private static void array(StringBuilder json, Iterable<?> values) {
+			json.append('[');
+			boolean first = true;
+			for(Object value : values) {
+				if(!first) {
+					json.append(',');
+				}
+				value(json, value);
+				first = false;
+			}
+			json.append(']');
+		}
+
+		private static void string(StringBuilder json, String value) {
+			json.append('"');
+			for(int i=0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				switch(c) {
+				case '"':
+					json.append("\\\"");
+					break;
+				case '\\':
+					json.append("\\\\");
+					break;
+				case '\n':
+					json.append("\\n");
+					break;
+				case '\r':
+					json.append("\\r");
+					break;
+				case '\t':
+					json.append("\\t");
+					break;
+				default:
+					if(c < 0x20) {
+						json.append(String.format("\\u%04x", (int) c));
+					} else {
+						json.append(c);
+					}
+				}
+			}
+			json.append('"');
+		}
+	}
+}